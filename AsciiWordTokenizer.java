@@ -0,0 +1,147 @@
+import java.util.NoSuchElementException;
+
+import weka.core.RevisionUtils;
+import weka.core.tokenizers.Tokenizer;
+
+
+/**
+ * Splits text into runs of ASCII letters, digits and underscores, lowercased.
+ *
+ * Produces the same tokens as an NGramTokenizer of size 1 with the delimiters "\\W"
+ * followed by lowercasing, but scans the characters once without regular expressions.
+ * Besides the usual Enumeration interface it has a fast path, advance(), that leaves
+ * each token in a reusable char[] together with its String.hashCode(), so callers can
+ * look tokens up without creating Strings.
+ */
+public class AsciiWordTokenizer extends Tokenizer {
+
+    private static final long serialVersionUID = 1L;
+
+    // lowercased copy of the text being tokenized, reused between calls
+    private transient char[] buffer = new char[256];
+    private int length;
+    private int position;
+
+    // the current token is buffer[tokenStart, tokenEnd)
+    private int tokenStart;
+    private int tokenEnd;
+    private int tokenHash;
+
+    // true when hasMoreElements() found a token that nextElement() has not returned yet
+    private boolean pending;
+
+    @Override
+    public String globalInfo() {
+        return "Splits a string into lowercased runs of ASCII letters, digits and underscores.";
+    }
+
+    @Override
+    public void tokenize(String s) {
+        length = s.length();
+        if (buffer == null || buffer.length < length) {
+            buffer = new char[Math.max(length, 256)];
+        }
+        s.getChars(0, length, buffer, 0);
+        position = 0;
+        pending = false;
+    }
+
+    @Override
+    public boolean hasMoreElements() {
+        if (!pending) {
+            pending = scan();
+        }
+        return pending;
+    }
+
+    @Override
+    public String nextElement() {
+        if (!hasMoreElements()) {
+            throw new NoSuchElementException();
+        }
+        pending = false;
+        return new String(buffer, tokenStart, tokenEnd - tokenStart);
+    }
+
+    /**
+     * move to the next token without creating a String.
+     * @return false when there are no more tokens
+     */
+    public boolean advance() {
+        if (pending) {
+            pending = false;
+            return true;
+        }
+        return scan();
+    }
+
+    /**
+     * @return the characters of the current token, valid until the next tokenize()
+     */
+    public char[] tokenChars() {
+        return buffer;
+    }
+
+    /**
+     * @return offset of the current token in tokenChars()
+     */
+    public int tokenOffset() {
+        return tokenStart;
+    }
+
+    /**
+     * @return length of the current token
+     */
+    public int tokenLength() {
+        return tokenEnd - tokenStart;
+    }
+
+    /**
+     * @return String.hashCode() of the current token
+     */
+    public int tokenHash() {
+        return tokenHash;
+    }
+
+    /**
+     * find the next token, lowercasing and hashing it on the way.
+     */
+    private boolean scan() {
+        char[] chars = buffer;
+        int i = position;
+        while (i < length && !isWordChar(chars[i])) {
+            i++;
+        }
+        if (i == length) {
+            position = i;
+            return false;
+        }
+
+        tokenStart = i;
+        int hash = 0;
+        for (; i < length; i++) {
+            char c = chars[i];
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+                chars[i] = c;
+            } else if (!isWordChar(c)) {
+                break;
+            }
+            hash = 31 * hash + c;
+        }
+        tokenEnd = i;
+        tokenHash = hash;
+        position = i;
+        return true;
+    }
+
+    // the characters of the regex class \w
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    @Override
+    public String getRevision() {
+        return RevisionUtils.extract("$Revision: 1 $");
+    }
+}
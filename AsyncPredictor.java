@@ -0,0 +1,177 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+
+/**
+ * Non-blocking prediction for callers that run on an event loop: predictAsync() queues the
+ * message and returns at once, and a dedicated thread scores the queued messages in
+ * micro-batches.
+ *
+ * A batch is sent as soon as it holds maxBatchSize messages, or when its oldest message has
+ * waited maxWaitMicros, whichever comes first, so batching adds at most maxWaitMicros to a
+ * message's latency; under load batches fill up before the wait runs out and the thread
+ * hands off one batch at a time instead of one message. Messages that arrive while a batch is
+ * being scored form the next batch. Only the batching thread touches the scorer, so it may be
+ * WekaClassifier.predictBatch(), which is not thread-safe. Futures are completed on that
+ * thread, callers should attach slow work with the *Async methods of CompletableFuture. When
+ * the queue is full, predictAsync() fails the future at once rather than block.
+ */
+public class AsyncPredictor implements AutoCloseable {
+
+    private static Logger LOGGER = Logger.getLogger("AsyncPredictor");
+
+    private final Function < List < String > , List < String >> scorer;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final BlockingQueue < Request > queue;
+    private final Thread batcher;
+    private volatile boolean closed;
+
+    /**
+     * A queued message and the future of its label.
+     */
+    private static final class Request {
+        final String text;
+        final long arrival = System.nanoTime();
+        final CompletableFuture < String > label = new CompletableFuture < > ();
+
+        Request(String text) {
+            this.text = text;
+        }
+    }
+
+    /**
+     * @param scorer labels a batch of messages, in order; returns null or throws if it fails
+     * @param maxBatchSize the most messages scored together
+     * @param maxWaitMicros the longest a message waits for its batch to fill up
+     * @param queueCapacity the most messages waiting; more are rejected
+     */
+    public AsyncPredictor(Function < List < String > , List < String >> scorer, int maxBatchSize, long maxWaitMicros,
+        int queueCapacity) {
+        this.scorer = scorer;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        this.queue = new ArrayBlockingQueue < > (queueCapacity);
+        this.batcher = new Thread(this::run, "prediction-batcher");
+        batcher.setDaemon(true);
+        batcher.start();
+    }
+
+    /**
+     * score with WekaClassifier.predictBatch(); the classifier must not be used by other threads meanwhile.
+     * @param maxBatchSize the most messages scored together
+     * @param maxWaitMicros the longest a message waits for its batch to fill up
+     */
+    public AsyncPredictor(WekaClassifier classifier, int maxBatchSize, long maxWaitMicros) {
+        this(classifier::predictBatch, maxBatchSize, maxWaitMicros, 64 * maxBatchSize);
+    }
+
+    /**
+     * classify a message into spam or ham without blocking.
+     * @param text message to be classified.
+     * @return the class label (spam or ham), or a failed future if the message was rejected or
+     *         could not be scored
+     */
+    public CompletableFuture < String > predictAsync(String text) {
+        Request request = new Request(text);
+        if (closed) {
+            request.label.completeExceptionally(new RejectedExecutionException("predictor is closed"));
+        } else if (!queue.offer(request)) {
+            request.label.completeExceptionally(new RejectedExecutionException("prediction queue is full"));
+        } else if (closed && queue.remove(request)) {
+            // closed while queuing, after the batcher and close() may have seen the queue for the last time
+            request.label.completeExceptionally(new RejectedExecutionException("predictor is closed"));
+        }
+        return request.label;
+    }
+
+    /**
+     * gather batches and score them until closed and drained.
+     */
+    private void run() {
+        List < Request > batch = new ArrayList < > (maxBatchSize);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = first.arrival + maxWaitNanos;
+                while (batch.size() < maxBatchSize) {
+                    // take what is already waiting without a wakeup per message
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                    long wait = deadline - System.nanoTime();
+                    if (batch.size() == maxBatchSize || wait <= 0) {
+                        break;
+                    }
+                    Request next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                score(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * score one batch and complete its futures; nothing the scorer does stops the batching thread.
+     */
+    private void score(List < Request > batch) {
+        List < String > labels = null;
+        try {
+            List < String > texts = new ArrayList < > (batch.size());
+            for (Request request: batch) {
+                texts.add(request.text);
+            }
+            labels = scorer.apply(texts);
+            if (labels != null && labels.size() != batch.size()) {
+                LOGGER.warning("scorer returned " + labels.size() + " labels for " + batch.size() + " messages");
+                labels = null;
+            }
+        } catch (Throwable e) {
+            LOGGER.warning("prediction failed: " + e);
+            labels = null;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            if (labels != null && labels.get(i) != null) {
+                batch.get(i).label.complete(labels.get(i));
+            } else {
+                batch.get(i).label.completeExceptionally(new IllegalStateException("prediction failed"));
+            }
+        }
+    }
+
+    /**
+     * stop accepting messages, and wait until the queued ones are scored. If the calling thread is
+     * interrupted, it stops waiting and keeps its interrupt status; the batcher still scores them.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            batcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        // messages queued while the batcher was finishing
+        for (Request request; (request = queue.poll()) != null;) {
+            request.label.completeExceptionally(new RejectedExecutionException("predictor is closed"));
+        }
+    }
+}
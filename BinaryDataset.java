@@ -0,0 +1,277 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+
+/**
+ * Compact binary form of a labeled text dataset, read through a memory map without copying.
+ *
+ * Layout, big-endian:
+ *   int magic, int version, long key, int numLabels, numLabels x (short length, UTF-8 bytes),
+ *   int numRows, numRows x byte label, (numRows + 1) x int text offset, UTF-8 text blob.
+ * Text i is blob[offset[i], offset[i + 1]). A file is limited to one 2 GB mapping.
+ * The key is opaque to this class, DatasetCache uses it to tell what the file was built from.
+ */
+public class BinaryDataset implements Closeable {
+
+    private static final int MAGIC = 0x534d5344; // "SMSD"
+    private static final int VERSION = 2;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final long key;
+    private final List < String > labels;
+    private final int numRows;
+
+    // where the columns start in the mapped file
+    private final int labelsStart;
+    private final int offsetsStart;
+    private final int blobStart;
+
+    // decoding buffer for text(), sized to the longest text seen so far
+    private byte[] scratch = new byte[1024];
+
+    private BinaryDataset(FileChannel channel) throws IOException {
+        this.channel = channel;
+        if (channel.size() > Integer.MAX_VALUE) {
+            throw new IOException("binary dataset larger than 2 GB");
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("not a binary dataset");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported binary dataset version " + version);
+        }
+        key = buffer.getLong();
+
+        int numLabels = buffer.getInt();
+        labels = new ArrayList < > (numLabels);
+        for (int i = 0; i < numLabels; i++) {
+            byte[] label = new byte[buffer.getShort()];
+            buffer.get(label);
+            labels.add(new String(label, StandardCharsets.UTF_8));
+        }
+
+        numRows = buffer.getInt();
+        labelsStart = buffer.position();
+        offsetsStart = labelsStart + numRows;
+        blobStart = offsetsStart + 4 * (numRows + 1);
+    }
+
+    /**
+     * map a binary dataset file.
+     * @param fileName The name of the file.
+     * @return the dataset, to be closed after use
+     */
+    public static BinaryDataset open(String fileName) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        try {
+            return new BinaryDataset(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * write a dataset whose first attribute is the nominal label and second attribute is the text.
+     * @param dataset the dataset
+     * @param fileName The name of the file.
+     */
+    public static void write(Instances dataset, String fileName) throws IOException {
+        write(dataset, fileName, 0);
+    }
+
+    /**
+     * write a dataset whose first attribute is the nominal label and second attribute is the text.
+     * @param dataset the dataset
+     * @param fileName The name of the file.
+     * @param key stored in the header and returned by key()
+     */
+    public static void write(Instances dataset, String fileName, long key) throws IOException {
+        Attribute classAttribute = dataset.attribute(0);
+        List < String > labelNames = new ArrayList < > (classAttribute.numValues());
+        for (int i = 0; i < classAttribute.numValues(); i++) {
+            labelNames.add(classAttribute.value(i));
+        }
+
+        int numRows = dataset.numInstances();
+        byte[] rowLabels = new byte[numRows];
+        String[] texts = new String[numRows];
+        for (int i = 0; i < numRows; i++) {
+            Instance row = dataset.instance(i);
+            rowLabels[i] = (byte) row.value(0);
+            texts[i] = row.stringValue(1);
+        }
+        write(labelNames, rowLabels, texts, fileName, key);
+    }
+
+    /**
+     * write rows given as columns.
+     * @param labelNames the label names
+     * @param rowLabels label index of each row
+     * @param rowTexts text of each row
+     * @param fileName The name of the file.
+     * @param key stored in the header and returned by key()
+     */
+    public static void write(List < String > labelNames, byte[] rowLabels, String[] rowTexts, String fileName, long key)
+    throws IOException {
+        int numRows = rowLabels.length;
+        byte[][] texts = new byte[numRows][];
+        for (int i = 0; i < numRows; i++) {
+            texts[i] = rowTexts[i].getBytes(StandardCharsets.UTF_8);
+        }
+
+        byte[][] names = new byte[labelNames.size()][];
+        int headerSize = 24;
+        for (int i = 0; i < names.length; i++) {
+            names[i] = labelNames.get(i).getBytes(StandardCharsets.UTF_8);
+            headerSize += 2 + names[i].length;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        header.putInt(MAGIC).putInt(VERSION).putLong(key).putInt(names.length);
+        for (byte[] label: names) {
+            header.putShort((short) label.length).put(label);
+        }
+        header.putInt(numRows);
+        header.flip();
+
+        ByteBuffer offsets = ByteBuffer.allocate(4 * (numRows + 1));
+        long offset = 0;
+        for (byte[] text: texts) {
+            offsets.putInt((int) offset);
+            offset += text.length;
+        }
+        offsets.putInt((int) offset);
+        if (headerSize + numRows + offsets.capacity() + offset > Integer.MAX_VALUE) {
+            throw new IOException("binary dataset larger than 2 GB");
+        }
+        offsets.flip();
+
+        try (FileChannel out = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(out, header);
+            writeFully(out, ByteBuffer.wrap(rowLabels));
+            writeFully(out, offsets);
+
+            ByteBuffer blob = ByteBuffer.allocate(1024 * 1024);
+            for (byte[] text: texts) {
+                if (blob.remaining() < text.length) {
+                    blob.flip();
+                    writeFully(out, blob);
+                    blob.clear();
+                }
+                if (text.length > blob.capacity()) {
+                    writeFully(out, ByteBuffer.wrap(text));
+                } else {
+                    blob.put(text);
+                }
+            }
+            blob.flip();
+            writeFully(out, blob);
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+    }
+
+    /**
+     * @return the key the file was written with
+     */
+    public long key() {
+        return key;
+    }
+
+    /**
+     * @return the label names, indexed like label()
+     */
+    public List < String > labels() {
+        return labels;
+    }
+
+    /**
+     * @return number of rows
+     */
+    public int size() {
+        return numRows;
+    }
+
+    /**
+     * @return label index of a row
+     */
+    public int label(int row) {
+        return buffer.get(labelsStart + row);
+    }
+
+    /**
+     * @return length in bytes of the UTF-8 text of a row
+     */
+    public int textLength(int row) {
+        return textOffset(row + 1) - textOffset(row);
+    }
+
+    /**
+     * @return the text of a row, decoded from the mapped file
+     */
+    public String text(int row) {
+        int length = textLength(row);
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, 2 * scratch.length)];
+        }
+        buffer.get(blobStart + textOffset(row), scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private int textOffset(int row) {
+        return buffer.getInt(offsetsStart + 4 * row);
+    }
+
+    /**
+     * append every row to a dataset whose first attribute is the nominal label and second
+     * attribute is the text. Labels are matched by name, unknown labels become missing.
+     * @param dataset the dataset receiving the rows
+     */
+    public void addTo(Instances dataset) {
+        Attribute classAttribute = dataset.attribute(0);
+        Attribute textAttribute = dataset.attribute(1);
+
+        int[] labelIndex = new int[labels.size()];
+        for (int i = 0; i < labelIndex.length; i++) {
+            labelIndex[i] = classAttribute.indexOfValue(labels.get(i));
+        }
+
+        for (int i = 0; i < numRows; i++) {
+            double[] values = new double[2];
+            values[0] = labelIndex[label(i)] < 0 ? Utils.missingValue() : labelIndex[label(i)];
+            values[1] = textAttribute.addStringValue(text(i));
+            dataset.add(new DenseInstance(1, values));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
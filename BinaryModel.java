@@ -0,0 +1,567 @@
+import java.io.IOException;
+import java.io.StringReader;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.Arrays;
+
+import weka.classifiers.bayes.NaiveBayesMultinomial;
+import weka.classifiers.bayes.NaiveBayesMultinomialUpdateable;
+import weka.classifiers.meta.FilteredClassifier;
+
+import weka.core.Instances;
+import weka.core.OptionHandler;
+import weka.core.Utils;
+import weka.core.stemmers.Stemmer;
+import weka.core.stopwords.StopwordsHandler;
+import weka.core.tokenizers.Tokenizer;
+
+import weka.filters.unsupervised.attribute.StringToWordVector;
+
+
+/**
+ * Compact binary form of a trained StringToWordVector + multinomial NaiveBayes classifier.
+ *
+ * Only what scoring needs is stored: the filter options, the dictionary words in attribute
+ * order and one float per word and class, instead of the serialized object graph with its
+ * Instances headers. The classifier is rebuilt from it by toClassifier(), or the tables are
+ * scored directly by compile() without creating any Weka objects.
+ *
+ * Layout, big-endian:
+ *   int magic, int version, int kind, int numClasses, numClasses x (short length, UTF-8 label),
+ *   4 x (int length, UTF-8 string): filter options, tokenizer, stemmer, stopwords handler,
+ *   int numWords,
+ *   numClasses x double probOfClass, numClasses x double wordsPerClass,
+ *   (numWords + 1) x int word offset, UTF-8 word blob, padding to 4 bytes,
+ *   int numSlots, numSlots x int word index,
+ *   numClasses x numWords x float weight.
+ * Word i is blob[offset[i], offset[i + 1]). The slots are an open-addressing table from
+ * String.hashCode() of a word to its index, so MappedModel can look words up in the file
+ * itself. Weights are the word counts of NaiveBayesMultinomialUpdateable or the
+ * log-probabilities of NaiveBayesMultinomial, rounded to float; wordsPerClass is only used with
+ * counts. Floats hold counts exactly only below 2^24, so of() rejects a classifier with a larger
+ * count rather than store it rounded; saveModel() then serializes it.
+ * The tokenizer, stemmer and stopwords handler are stored apart from the other filter options,
+ * as their full class name and options, and are created directly: StringToWordVector.setOptions()
+ * would search the whole classpath for a class name without a package, like AsciiWordTokenizer's.
+ */
+public class BinaryModel {
+
+    private static final int MAGIC = 0x534d534d; // "SMSM"
+    private static final int VERSION = 3;
+
+    // floats hold every integer up to this
+    private static final double MAX_COUNT = 1 << 24;
+
+    /** weights are word counts of NaiveBayesMultinomialUpdateable */
+    public static final int COUNTS = 0;
+
+    /** weights are log-probabilities of NaiveBayesMultinomial */
+    public static final int LOG_PROBS = 1;
+
+    private final int kind;
+    private final String[] labels;
+    private final String filterOptions;
+    private final String tokenizer;
+    private final String stemmer;
+    private final String stopwords;
+    private final String[] words;
+
+    // [class][word]
+    private final float[][] weights;
+
+    private final double[] probOfClass;
+    private final double[] wordsPerClass;
+
+    /**
+     * @param kind COUNTS or LOG_PROBS
+     * @param labels the class labels
+     * @param filter the StringToWordVector, whose settings are stored
+     * @param words the dictionary, in attribute order
+     * @param weights [class][word] counts or log-probabilities
+     * @param probOfClass the class priors, as the NaiveBayes model holds them
+     * @param wordsPerClass word counts per class plus the number of attributes, for COUNTS
+     */
+    public BinaryModel(int kind, String[] labels, StringToWordVector filter, String[] words, float[][] weights,
+        double[] probOfClass, double[] wordsPerClass) {
+        this(kind, labels, otherOptions(filter), Utils.toCommandLine(filter.getTokenizer()),
+            Utils.toCommandLine(filter.getStemmer()), Utils.toCommandLine(filter.getStopwordsHandler()),
+            words, weights, probOfClass, wordsPerClass);
+    }
+
+    private BinaryModel(int kind, String[] labels, String filterOptions, String tokenizer, String stemmer,
+        String stopwords, String[] words, float[][] weights, double[] probOfClass, double[] wordsPerClass) {
+        if (kind != COUNTS && kind != LOG_PROBS) {
+            throw new IllegalArgumentException("unknown kind " + kind);
+        }
+        this.kind = kind;
+        this.labels = labels;
+        this.filterOptions = filterOptions;
+        this.tokenizer = tokenizer;
+        this.stemmer = stemmer;
+        this.stopwords = stopwords;
+        this.words = words;
+        this.weights = weights;
+        this.probOfClass = probOfClass;
+        this.wordsPerClass = wordsPerClass;
+    }
+
+    /**
+     * take the tables of a trained classifier.
+     * @param classifier a FilteredClassifier trained with StringToWordVector and NaiveBayesMultinomial(Updateable)
+     * @return the model
+     */
+    public static BinaryModel of(FilteredClassifier classifier) throws Exception {
+        if (!(classifier.getFilter() instanceof StringToWordVector)) {
+            throw new IllegalArgumentException("filter must be a StringToWordVector");
+        }
+        if (!(classifier.getClassifier() instanceof NaiveBayesMultinomial)) {
+            throw new IllegalArgumentException("classifier must be a NaiveBayesMultinomial");
+        }
+        StringToWordVector filter = (StringToWordVector) classifier.getFilter();
+        // the filter is rebuilt from its options and dictionary alone, without document frequencies or lengths
+        NaiveBayesFields.checkWordCounts(filter);
+
+        NaiveBayesMultinomial nb = (NaiveBayesMultinomial) classifier.getClassifier();
+        double[][] table = (double[][]) NaiveBayesFields.read(NaiveBayesMultinomial.class, nb, "m_probOfWordGivenClass");
+        double[] probOfClass = ((double[]) NaiveBayesFields.read(NaiveBayesMultinomial.class, nb, "m_probOfClass")).clone();
+        int kind = LOG_PROBS;
+        double[] wordsPerClass = new double[probOfClass.length];
+        if (nb instanceof NaiveBayesMultinomialUpdateable) {
+            kind = COUNTS;
+            wordsPerClass = ((double[]) NaiveBayesFields.read(NaiveBayesMultinomialUpdateable.class, nb, "m_wordsPerClass")).clone();
+        }
+
+        Instances header = filter.getOutputFormat();
+        int numClasses = header.numClasses();
+        if (kind == COUNTS) {
+            for (int c = 0; c < numClasses; c++) {
+                for (int i = 0; i < header.numAttributes(); i++) {
+                    if (table[c][i] > MAX_COUNT) {
+                        throw new IllegalArgumentException("word counts above 2^24 can not be stored exactly");
+                    }
+                }
+            }
+        }
+        String prefix = filter.getAttributeNamePrefix();
+        String[] words = new String[header.numAttributes() - 1];
+        float[][] weights = new float[numClasses][words.length];
+        int word = 0;
+        for (int i = 0; i < header.numAttributes(); i++) {
+            if (i == header.classIndex()) {
+                continue;
+            }
+            words[word] = header.attribute(i).name().substring(prefix.length());
+            for (int c = 0; c < numClasses; c++) {
+                weights[c][word] = (float) table[c][i];
+            }
+            word++;
+        }
+
+        String[] labels = new String[numClasses];
+        for (int c = 0; c < numClasses; c++) {
+            labels[c] = header.classAttribute().value(c);
+        }
+        return new BinaryModel(kind, labels, filter, words, weights, probOfClass, wordsPerClass);
+    }
+
+    /**
+     * @return the options of a filter without its tokenizer, stemmer and stopwords handler
+     */
+    private static String otherOptions(StringToWordVector filter) {
+        String[] options = filter.getOptions();
+        try {
+            Utils.getOption("tokenizer", options);
+            Utils.getOption("stemmer", options);
+            Utils.getOption("stopwords-handler", options);
+        } catch (Exception e) {
+            throw new IllegalArgumentException(e);
+        }
+        return Utils.joinOptions(options);
+    }
+
+    /**
+     * write the model file.
+     * @param fileName The name of the file.
+     */
+    public void write(String fileName) throws IOException {
+        int numClasses = labels.length;
+        byte[][] names = new byte[numClasses][];
+        byte[][] settings = new byte[][] {filterOptions.getBytes(StandardCharsets.UTF_8),
+            tokenizer.getBytes(StandardCharsets.UTF_8), stemmer.getBytes(StandardCharsets.UTF_8),
+            stopwords.getBytes(StandardCharsets.UTF_8)};
+        int headerSize = 20 + 16 * numClasses;
+        for (byte[] setting: settings) {
+            headerSize += 4 + setting.length;
+        }
+        for (int c = 0; c < numClasses; c++) {
+            names[c] = labels[c].getBytes(StandardCharsets.UTF_8);
+            headerSize += 2 + names[c].length;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        header.putInt(MAGIC).putInt(VERSION).putInt(kind).putInt(numClasses);
+        for (byte[] label: names) {
+            header.putShort((short) label.length).put(label);
+        }
+        for (byte[] setting: settings) {
+            header.putInt(setting.length).put(setting);
+        }
+        header.putInt(words.length);
+        for (double prior: probOfClass) {
+            header.putDouble(prior);
+        }
+        for (double total: wordsPerClass) {
+            header.putDouble(total);
+        }
+        header.flip();
+
+        byte[][] encoded = new byte[words.length][];
+        ByteBuffer offsets = ByteBuffer.allocate(4 * (words.length + 1));
+        int offset = 0;
+        for (int i = 0; i < words.length; i++) {
+            encoded[i] = words[i].getBytes(StandardCharsets.UTF_8);
+            offsets.putInt(offset);
+            offset += encoded[i].length;
+        }
+        offsets.putInt(offset);
+        offsets.flip();
+
+        try (FileChannel out = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(out, header);
+            writeFully(out, offsets);
+
+            ByteBuffer blob = ByteBuffer.allocate(1024 * 1024);
+            for (byte[] word: encoded) {
+                if (blob.remaining() < word.length) {
+                    blob.flip();
+                    writeFully(out, blob);
+                    blob.clear();
+                }
+                blob.put(word);
+            }
+            blob.flip();
+            writeFully(out, blob);
+
+            // pad to 4 bytes, then the slots of an open-addressing table of the words
+            ByteBuffer slots = ByteBuffer.allocate(3 + 4 + 4 * Vocabulary.tableSize(words.length));
+            slots.position((4 - (header.limit() + offsets.limit() + offset) % 4) % 4);
+            slots.putInt(Vocabulary.tableSize(words.length));
+            slots.asIntBuffer().put(slotTable());
+            slots.position(slots.position() + 4 * Vocabulary.tableSize(words.length));
+            slots.flip();
+            writeFully(out, slots);
+
+            ByteBuffer table = ByteBuffer.allocate(4 * words.length);
+            for (float[] classWeights: weights) {
+                table.clear();
+                table.asFloatBuffer().put(classWeights);
+                writeFully(out, table);
+            }
+        }
+    }
+
+    /**
+     * @return the word index in each slot of an open-addressing table of the words, -1 if the
+     *         slot is empty; words are placed and probed as in Vocabulary
+     */
+    private int[] slotTable() {
+        int[] slots = new int[Vocabulary.tableSize(words.length)];
+        Arrays.fill(slots, -1);
+        int mask = slots.length - 1;
+        for (int i = 0; i < words.length; i++) {
+            int slot = Vocabulary.mix(words[i].hashCode()) & mask;
+            while (slots[slot] >= 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = i;
+        }
+        return slots;
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+    }
+
+    /**
+     * read a model file written by write().
+     * @param fileName The name of the file.
+     * @return the model
+     */
+    public static BinaryModel read(String fileName) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel in = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            if (in.size() > Integer.MAX_VALUE) {
+                throw new IOException("model file larger than 2 GB");
+            }
+            buffer = ByteBuffer.allocate((int) in.size());
+            while (buffer.hasRemaining()) {
+                if (in.read(buffer) < 0) {
+                    throw new IOException("truncated model file");
+                }
+            }
+            buffer.flip();
+        }
+        Layout layout = new Layout(buffer, fileName);
+        int numClasses = layout.labels.length;
+        int numWords = layout.numWords;
+
+        int[] offsets = new int[numWords + 1];
+        buffer.position(layout.offsetsStart).asIntBuffer().get(offsets);
+        byte[] blob = buffer.array();
+        String[] words = new String[numWords];
+        for (int i = 0; i < numWords; i++) {
+            words[i] = new String(blob, layout.blobStart + offsets[i], offsets[i + 1] - offsets[i], StandardCharsets.UTF_8);
+        }
+
+        float[][] weights = new float[numClasses][numWords];
+        for (int c = 0; c < numClasses; c++) {
+            buffer.position(layout.weightsStart(c)).asFloatBuffer().get(weights[c]);
+        }
+        return new BinaryModel(layout.kind, layout.labels, layout.filterOptions, layout.tokenizer, layout.stemmer,
+            layout.stopwords, words, weights, layout.probOfClass, layout.wordsPerClass);
+    }
+
+    /**
+     * The header of a model file and where its sections start, for reading the file in place.
+     */
+    static final class Layout {
+        final int kind;
+        final String[] labels;
+        final String filterOptions;
+        final String tokenizer;
+        final String stemmer;
+        final String stopwords;
+        final int numWords;
+        final double[] probOfClass;
+        final double[] wordsPerClass;
+
+        final int offsetsStart;
+        final int blobStart;
+
+        // word index per slot, -1 if empty
+        final int slotsStart;
+        final int numSlots;
+
+        final int weightsStart;
+
+        /**
+         * parse the header, leaving the buffer's position alone.
+         * @param file the whole model file
+         * @param fileName The name of the file, for messages.
+         */
+        Layout(ByteBuffer file, String fileName) throws IOException {
+            ByteBuffer buffer = file.duplicate();
+            buffer.position(0);
+            if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+                throw new IOException(fileName + " is not a binary model");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported binary model version " + version);
+            }
+            kind = buffer.getInt();
+            int numClasses = buffer.getInt();
+            labels = new String[numClasses];
+            for (int c = 0; c < numClasses; c++) {
+                labels[c] = string(buffer, buffer.getShort());
+            }
+            filterOptions = string(buffer, buffer.getInt());
+            tokenizer = string(buffer, buffer.getInt());
+            stemmer = string(buffer, buffer.getInt());
+            stopwords = string(buffer, buffer.getInt());
+            numWords = buffer.getInt();
+            probOfClass = new double[numClasses];
+            wordsPerClass = new double[numClasses];
+            for (int c = 0; c < numClasses; c++) {
+                probOfClass[c] = buffer.getDouble();
+            }
+            for (int c = 0; c < numClasses; c++) {
+                wordsPerClass[c] = buffer.getDouble();
+            }
+
+            offsetsStart = buffer.position();
+            blobStart = offsetsStart + 4 * (numWords + 1);
+            int blobEnd = blobStart + buffer.getInt(offsetsStart + 4 * numWords);
+            int slotsHeader = (blobEnd + 3) & ~3;
+            numSlots = buffer.getInt(slotsHeader);
+            slotsStart = slotsHeader + 4;
+            weightsStart = slotsStart + 4 * numSlots;
+            if ((long) weightsStart + 4L * numClasses * numWords > file.limit()) {
+                throw new IOException("truncated model file " + fileName);
+            }
+        }
+
+        /**
+         * @return a filter with the stored settings, untrained
+         */
+        StringToWordVector newFilter() throws Exception {
+            return BinaryModel.newFilter(filterOptions, tokenizer, stemmer, stopwords);
+        }
+
+        /**
+         * @return where the weights of a class start
+         */
+        int weightsStart(int classIndex) {
+            return weightsStart + 4 * classIndex * numWords;
+        }
+
+        private static String string(ByteBuffer buffer, int length) {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @param fileName The name of the file.
+     * @return true if the file starts like a binary model
+     */
+    public static boolean isBinaryModel(String fileName) {
+        try (FileChannel in = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && in.read(magic) >= 0) {
+                // read until the magic is complete or the file ends
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return a filter with the stored settings, untrained
+     */
+    private StringToWordVector newFilter() throws Exception {
+        return newFilter(filterOptions, tokenizer, stemmer, stopwords);
+    }
+
+    private static StringToWordVector newFilter(String options, String tokenizer, String stemmer, String stopwords)
+    throws Exception {
+        StringToWordVector filter = new StringToWordVector();
+        filter.setOptions(Utils.splitOptions(options));
+        filter.setTokenizer((Tokenizer) newInstance(tokenizer));
+        filter.setStemmer((Stemmer) newInstance(stemmer));
+        filter.setStopwordsHandler((StopwordsHandler) newInstance(stopwords));
+        return filter;
+    }
+
+    /**
+     * create an object from its class name and options, as written by Utils.toCommandLine().
+     */
+    private static Object newInstance(String commandLine) throws Exception {
+        String[] options = Utils.splitOptions(commandLine);
+        Object object = Class.forName(options[0]).getDeclaredConstructor().newInstance();
+        if (object instanceof OptionHandler) {
+            ((OptionHandler) object).setOptions(Arrays.copyOfRange(options, 1, options.length));
+        }
+        return object;
+    }
+
+    /**
+     * rebuild the trained classifier: the filter gets the stored dictionary, the NaiveBayes
+     * model the stored tables.
+     * @param header the format of the raw data, with the class set and the same labels
+     * @return the classifier
+     */
+    public VectorizedFilteredClassifier toClassifier(Instances header) throws Exception {
+        if (header.numClasses() != labels.length) {
+            throw new IllegalArgumentException("header has " + header.numClasses() + " labels, the model " + labels.length);
+        }
+        for (int c = 0; c < labels.length; c++) {
+            if (!header.classAttribute().value(c).equals(labels[c])) {
+                throw new IllegalArgumentException("label " + c + " differs: " + header.classAttribute().value(c));
+            }
+        }
+
+        // the dictionary in attribute order; document frequencies only matter for IDF
+        StringToWordVector filter = newFilter();
+        filter.setInputFormat(header);
+        StringBuilder dictionary = new StringBuilder();
+        for (String word: words) {
+            dictionary.append(word).append(",0\n");
+        }
+        ShardedTrainer.dictionaryBuilder(filter).loadDictionary(new StringReader(dictionary.toString()));
+        filter.batchFinished();
+
+        Instances output = filter.getOutputFormat();
+        int numClasses = labels.length;
+        int numAttributes = output.numAttributes();
+        double[][] table = new double[numClasses][numAttributes];
+        for (int c = 0; c < numClasses; c++) {
+            // the class attribute is never scored, NaiveBayesMultinomialUpdateable starts it at 1
+            table[c][output.classIndex()] = kind == COUNTS ? 1 : 0;
+            int word = 0;
+            for (int i = 0; i < numAttributes; i++) {
+                if (i != output.classIndex()) {
+                    table[c][i] = weights[c][word++];
+                }
+            }
+        }
+
+        NaiveBayesMultinomial nb = kind == COUNTS ? new NaiveBayesMultinomialUpdateable() : new NaiveBayesMultinomial();
+        if (kind == COUNTS) {
+            NaiveBayesFields.write(NaiveBayesMultinomialUpdateable.class, nb, "m_wordsPerClass", wordsPerClass.clone());
+        }
+        NaiveBayesFields.write(NaiveBayesMultinomial.class, nb, "m_headerInfo", new Instances(output, 0));
+        NaiveBayesFields.write(NaiveBayesMultinomial.class, nb, "m_numClasses", numClasses);
+        NaiveBayesFields.write(NaiveBayesMultinomial.class, nb, "m_numAttributes", numAttributes);
+        NaiveBayesFields.write(NaiveBayesMultinomial.class, nb, "m_probOfWordGivenClass", table);
+        NaiveBayesFields.write(NaiveBayesMultinomial.class, nb, "m_probOfClass", probOfClass.clone());
+
+        VectorizedFilteredClassifier classifier = new VectorizedFilteredClassifier();
+        classifier.setTrained(filter, nb);
+        return classifier;
+    }
+
+    /**
+     * score the stored tables directly, without rebuilding the Weka classifier.
+     * @return the compiled model
+     */
+    public CompiledModel compile() throws Exception {
+        int numClasses = labels.length;
+        Vocabulary dictionary = new Vocabulary(words.length);
+        for (String word: words) {
+            dictionary.add(word);
+        }
+
+        // [word * numClasses + class], see CompiledModel
+        double[] table = new double[words.length * numClasses];
+        for (int c = 0; c < numClasses; c++) {
+            float[] classWeights = weights[c];
+            for (int w = 0; w < words.length; w++) {
+                table[w * numClasses + c] = kind == COUNTS
+                    ? Math.log(classWeights[w] / wordsPerClass[c]) : classWeights[w];
+            }
+        }
+        return new CompiledModel(new WordCounter(dictionary, newFilter()), table, probOfClass.clone(), labels.clone());
+    }
+
+    /**
+     * @return COUNTS or LOG_PROBS
+     */
+    public int kind() {
+        return kind;
+    }
+
+    /**
+     * @return the class labels
+     */
+    public String[] labels() {
+        return labels.clone();
+    }
+
+    /**
+     * @return the number of words in the dictionary
+     */
+    public int numWords() {
+        return words.length;
+    }
+}
@@ -0,0 +1,1033 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+import java.lang.management.ManagementFactory;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import weka.classifiers.bayes.NaiveBayesMultinomial;
+import weka.classifiers.bayes.NaiveBayesMultinomialUpdateable;
+import weka.classifiers.meta.FilteredClassifier;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.tokenizers.NGramTokenizer;
+
+import weka.filters.Filter;
+import weka.filters.unsupervised.attribute.StringToWordVector;
+
+
+/**
+ * Small command line benchmarks for the WekaClassifier hot paths.
+ * Usage: java -cp weka.jar:. ClassifierBenchmark [alloc|batch|async|concurrent|compiled|online|hashed|tokenize|parse [copies]|parallel [copies]|cache [copies]|vectorized|incremental|sharded [copies]|model [words]|mapped [words]|reload]
+ */
+public class ClassifierBenchmark {
+
+    private static Logger LOGGER = Logger.getLogger("ClassifierBenchmark");
+
+    private static final String TRAIN_DATA = "dataset/train.txt";
+    private static final String TEST_DATA = "dataset/test.txt";
+
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int MEASURE_ROUNDS = 20;
+
+    /**
+     * train a classifier on the training data set.
+     * @return a fitted classifier
+     */
+    static WekaClassifier trainedClassifier() {
+        WekaClassifier wt = new WekaClassifier();
+        wt.transform();
+        wt.fit();
+        return wt;
+    }
+
+    /**
+     * read the text column of a raw data set.
+     * @param fileName The name of the file.
+     * @return the messages in file order
+     */
+    static List < String > messages(WekaClassifier wt, String fileName) {
+        List < String > messages = new ArrayList < > ();
+        wt.loadRawDataset(fileName).forEach(row -> messages.add(row.stringValue(1)));
+        return messages;
+    }
+
+    /**
+     * measure the heap allocated per prediction once the template and the JIT have warmed up,
+     * by predict() and by the compiled model, which returns the same labels.
+     */
+    static void allocation(WekaClassifier wt, List < String > messages) {
+        CompiledModel model = wt.compile();
+
+        System.out.printf("predict(): %.1f bytes/prediction%n", allocatedPerMessage(messages, wt::predict));
+        System.out.printf("CompiledModel.predict(): %.1f bytes/prediction%n", allocatedPerMessage(messages, model::predict));
+        System.out.printf("CompiledModel.classify(): %.1f bytes/prediction%n", allocatedPerMessage(messages, model::classify));
+    }
+
+    /**
+     * measure the heap allocated per message by a scoring function after warming it up.
+     */
+    static double allocatedPerMessage(List < String > messages, Consumer < String > scorer) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            for (String message: messages) {
+                scorer.accept(message);
+            }
+        }
+
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int round = 0; round < MEASURE_ROUNDS; round++) {
+            for (String message: messages) {
+                scorer.accept(message);
+            }
+        }
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        return (double) allocated / ((long) MEASURE_ROUNDS * messages.size());
+    }
+
+    /**
+     * check that AsciiWordTokenizer yields the tokens of the original NGramTokenizer set up, and time both.
+     */
+    static void tokenize(WekaClassifier wt, List < String > messages) {
+        List < String > all = new ArrayList < > (messages);
+        all.addAll(messages(wt, TRAIN_DATA));
+
+        NGramTokenizer ngram = new NGramTokenizer();
+        ngram.setNGramMinSize(1);
+        ngram.setNGramMaxSize(1);
+        ngram.setDelimiters("\\W");
+        AsciiWordTokenizer ascii = new AsciiWordTokenizer();
+
+        int mismatches = 0;
+        for (String message: all) {
+            List < String > expected = new ArrayList < > ();
+            ngram.tokenize(message);
+            while (ngram.hasMoreElements()) {
+                expected.add(ngram.nextElement().toLowerCase());
+            }
+            List < String > actual = new ArrayList < > ();
+            ascii.tokenize(message);
+            while (ascii.hasMoreElements()) {
+                actual.add(ascii.nextElement());
+            }
+            if (!expected.equals(actual)) {
+                mismatches++;
+            }
+        }
+        System.out.printf("AsciiWordTokenizer differs from NGramTokenizer on %d of %d messages%n", mismatches, all.size());
+
+        long regex = time(() -> {
+            for (String message: all) {
+                ngram.tokenize(message);
+                while (ngram.hasMoreElements()) {
+                    ngram.nextElement().toLowerCase();
+                }
+            }
+        });
+        long strings = time(() -> {
+            for (String message: all) {
+                ascii.tokenize(message);
+                while (ascii.hasMoreElements()) {
+                    ascii.nextElement();
+                }
+            }
+        });
+        long hashes = time(() -> {
+            for (String message: all) {
+                ascii.tokenize(message);
+                while (ascii.advance()) {
+                    ascii.tokenHash();
+                }
+            }
+        });
+        System.out.printf("NGramTokenizer + toLowerCase()     %8.3f us/message%n", regex / 1000.0 / all.size());
+        System.out.printf("AsciiWordTokenizer.nextElement()   %8.3f us/message%n", strings / 1000.0 / all.size());
+        System.out.printf("AsciiWordTokenizer.advance()       %8.3f us/message%n", hashes / 1000.0 / all.size());
+    }
+
+    /**
+     * compare the per message cost of predict() with predictBatch() over growing batch sizes.
+     */
+    static void batch(WekaClassifier wt, List < String > messages) {
+        int total = 20 * messages.size();
+
+        long single = time(() -> {
+            for (int i = 0; i < total; i++) {
+                wt.predict(messages.get(i % messages.size()));
+            }
+        });
+        System.out.printf("predict()          %8.2f us/message%n", single / 1000.0 / total);
+
+        for (int size: new int[] {1, 10, 100, 1000, 10000}) {
+            List < String > batch = new ArrayList < > (size);
+            for (int i = 0; i < size; i++) {
+                batch.add(messages.get(i % messages.size()));
+            }
+            int batches = Math.max(1, total / size);
+            long elapsed = time(() -> {
+                for (int i = 0; i < batches; i++) {
+                    wt.predictBatch(batch);
+                }
+            });
+            System.out.printf("predictBatch(%5d) %8.2f us/message%n", size, elapsed / 1000.0 / ((long) batches * size));
+        }
+    }
+
+    /**
+     * compare AsyncPredictor batch sizes with synchronous predict(): throughput when messages
+     * arrive as fast as they can be queued, then latency at half the synchronous throughput.
+     */
+    static void async(WekaClassifier wt, List < String > messages) throws Exception {
+        long elapsed = time(() -> {
+            for (int i = 0; i < 20000; i++) {
+                wt.predict(messages.get(i % messages.size()));
+            }
+        });
+        double syncRate = 20000 / (elapsed / 1e9);
+        System.out.printf("predict()        %8.0f messages/s%n", syncRate);
+
+        for (double rate: new double[] {0, syncRate / 2}) {
+            for (int size: new int[] {1, 16, 64, 256}) {
+                long[] batches = new long[1];
+                AsyncPredictor predictor = new AsyncPredictor(texts -> {
+                    batches[0]++;
+                    return wt.predictBatch(texts);
+                }, size, 1000, 1 << 16);
+                asyncRun(predictor, messages, rate, 1);
+                batches[0] = 0;
+                LatencyHistogram latency = new LatencyHistogram();
+                long count = asyncRun(predictor, messages, rate, 3, latency);
+                predictor.close();
+                System.out.printf("%-8s batch %3d %8.0f messages/s, mean batch %6.1f, p50 %8.1f us, p99 %8.1f us, max %6.1f ms%n",
+                    rate > 0 ? String.format("%.0f/s", rate) : "flood", size, count / 3.0, (double) count / batches[0],
+                    latency.percentile(50) / 1e3, latency.percentile(99) / 1e3, latency.max() / 1e6);
+            }
+        }
+    }
+
+    private static long asyncRun(AsyncPredictor predictor, List < String > messages, double rate, double seconds) throws Exception {
+        return asyncRun(predictor, messages, rate, seconds, new LatencyHistogram());
+    }
+
+    /**
+     * submit messages from this thread, at a fixed rate or, with rate 0, as fast as the queue takes them.
+     * @return the number of messages scored
+     */
+    private static long asyncRun(AsyncPredictor predictor, List < String > messages, double rate, double seconds,
+        LatencyHistogram latency) throws Exception {
+        long start = System.nanoTime();
+        long end = start + (long)(seconds * 1e9);
+        List < CompletableFuture < String >> futures = new ArrayList < > ();
+        for (long i = 0;; i++) {
+            long due = rate > 0 ? start + (long)(i * 1e9 / rate) : System.nanoTime();
+            if (due >= end) {
+                break;
+            }
+            while (System.nanoTime() < due) {
+                Thread.yield();
+            }
+            String text = messages.get((int)(i % messages.size()));
+            CompletableFuture < String > label;
+            while ((label = predictor.predictAsync(text)).isCompletedExceptionally()) {
+                // queue full, retry after the batcher has taken some
+                Thread.yield();
+                due = System.nanoTime();
+            }
+            long submitted = due;
+            futures.add(label.whenComplete((l, e) -> latency.record(System.nanoTime() - submitted)));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture < ? > [0])).join();
+        return futures.size();
+    }
+
+    /**
+     * measure ConcurrentScorer throughput with a growing number of threads sharing one model.
+     */
+    static void concurrent(WekaClassifier wt, List < String > messages) throws Exception {
+        ConcurrentScorer scorer = new ConcurrentScorer(wt.getClassifier());
+
+        int mismatches = 0;
+        for (String message: messages) {
+            if (!scorer.predict(message).equals(wt.predict(message))) {
+                mismatches++;
+            }
+        }
+        System.out.printf("ConcurrentScorer disagrees with predict() on %d of %d messages%n", mismatches, messages.size());
+
+        int perThread = 50 * messages.size();
+        int maxThreads = 2 * Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            int n = threads;
+            long elapsed = time(() -> {
+                List < Future < ? >> done = new ArrayList < > ();
+                for (int t = 0; t < n; t++) {
+                    done.add(pool.submit(() -> {
+                        for (int i = 0; i < perThread; i++) {
+                            scorer.predict(messages.get(i % messages.size()));
+                        }
+                        return null;
+                    }));
+                }
+                for (Future < ? > f: done) {
+                    try {
+                        f.get();
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+            pool.shutdown();
+            System.out.printf("%3d threads %12.0f messages/s%n", threads, (double) n * perThread * 1e9 / elapsed);
+        }
+    }
+
+    /**
+     * check that the compiled model reproduces classifyInstance() and compare their speed.
+     */
+    static void compiled(WekaClassifier wt, List < String > messages) {
+        CompiledModel model = wt.compile();
+
+        int mismatches = 0;
+        for (String message: messages) {
+            if (!model.predict(message).equals(wt.predict(message))) {
+                mismatches++;
+            }
+        }
+        System.out.printf("CompiledModel disagrees with predict() on %d of %d messages%n", mismatches, messages.size());
+
+        int total = 50 * messages.size();
+        long weka = time(() -> {
+            for (int i = 0; i < total; i++) {
+                wt.predict(messages.get(i % messages.size()));
+            }
+        });
+        long flat = time(() -> {
+            for (int i = 0; i < total; i++) {
+                model.classify(messages.get(i % messages.size()));
+            }
+        });
+        System.out.printf("predict()                %8.2f us/message%n", weka / 1000.0 / total);
+        System.out.printf("CompiledModel.classify() %8.2f us/message (%.1fx)%n", flat / 1000.0 / total, (double) weka / flat);
+    }
+
+    /**
+     * run a task a few times to warm up, then return the duration of one more run.
+     * @return elapsed nanoseconds
+     */
+    static long time(Runnable task) {
+        for (int i = 0; i < 3; i++) {
+            task.run();
+        }
+        long start = System.nanoTime();
+        task.run();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * write a synthetic corpus made of copies of the training data.
+     * @return the temporary file, deleted on exit
+     */
+    static File syntheticCorpus(int copies) throws IOException {
+        File file = File.createTempFile("sms-corpus", ".txt");
+        file.deleteOnExit();
+        byte[] train = Files.readAllBytes(Paths.get(TRAIN_DATA));
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            for (int i = 0; i < copies; i++) {
+                out.write(train);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * compare the parse throughput of the original BufferedReader/split loop with the
+     * memory-mapped reader: fully loaded, streamed in chunks, and row by row without Instances.
+     */
+    static void parse(int copies) throws IOException {
+        File corpus = syntheticCorpus(copies);
+        double megabytes = corpus.length() / 1e6;
+        WekaClassifier wt = new WekaClassifier();
+
+        long split = time(() -> {
+            try (BufferedReader br = new BufferedReader(new FileReader(corpus))) {
+                for (String line;
+                    (line = br.readLine()) != null;) {
+                    line.split("\\s+", 2);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        long load = time(() -> wt.loadRawDataset(corpus.getPath()));
+        long stream = time(() -> wt.streamRawDataset(corpus.getPath(), 10000, chunk -> {}));
+        long rows = time(() -> {
+            try (RawDatasetReader reader = new RawDatasetReader(corpus.getPath(), wt.labels())) {
+                while (reader.next()) {
+                    reader.text();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        System.out.printf("corpus: %.1f MB%n", megabytes);
+        System.out.printf("readLine() + split()     %8.1f MB/s%n", megabytes * 1e9 / split);
+        System.out.printf("loadRawDataset()         %8.1f MB/s%n", megabytes * 1e9 / load);
+        System.out.printf("streamRawDataset(10000)  %8.1f MB/s%n", megabytes * 1e9 / stream);
+        System.out.printf("RawDatasetReader.next()  %8.1f MB/s%n", megabytes * 1e9 / rows);
+    }
+
+    /**
+     * measure parallel parsing with a growing number of threads, with and without building Instances.
+     */
+    static void parallel(int copies) throws IOException {
+        File corpus = syntheticCorpus(copies);
+        double megabytes = corpus.length() / 1e6;
+        WekaClassifier wt = new WekaClassifier();
+
+        System.out.printf("corpus: %.1f MB, %d cores%n", megabytes, Runtime.getRuntime().availableProcessors());
+        for (int threads: new int[] {1, 2, 4, 8, 16, 32}) {
+            ParallelDatasetLoader loader = new ParallelDatasetLoader(threads);
+            long parse = time(() -> {
+                try {
+                    loader.parse(corpus.getPath(), wt.labels());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            long load = time(() -> wt.loadRawDataset(corpus.getPath(), threads));
+            System.out.printf("%3d threads  parse %8.1f MB/s  loadRawDataset %8.1f MB/s%n",
+                threads, megabytes * 1e9 / parse, megabytes * 1e9 / load);
+        }
+    }
+
+    /**
+     * compare reading the ARFF cache with reading the binary cache of the same dataset.
+     */
+    static void cache(int copies) throws IOException {
+        File corpus = syntheticCorpus(copies);
+        WekaClassifier wt = new WekaClassifier();
+        Instances dataset = wt.loadRawDataset(corpus.getPath());
+
+        File arff = File.createTempFile("sms-corpus", ".arff");
+        File binary = File.createTempFile("sms-corpus", ".bin");
+        arff.deleteOnExit();
+        binary.deleteOnExit();
+        wt.saveArff(dataset, arff.getPath());
+        wt.saveBinary(dataset, binary.getPath());
+
+        long loadArff = time(() -> wt.loadArff(arff.getPath()));
+        long loadBinary = time(() -> wt.loadBinary(binary.getPath()));
+        long open = time(() -> {
+            try (BinaryDataset mapped = BinaryDataset.open(binary.getPath())) {
+                mapped.label(mapped.size() - 1);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        System.out.printf("%d rows, ARFF %.1f MB, binary %.1f MB%n", dataset.numInstances(), arff.length() / 1e6, binary.length() / 1e6);
+        System.out.printf("loadArff()            %10.2f ms%n", loadArff / 1e6);
+        System.out.printf("loadBinary()          %10.2f ms%n", loadBinary / 1e6);
+        System.out.printf("BinaryDataset.open()  %10.2f ms%n", open / 1e6);
+    }
+
+    /**
+     * check that OnlineModel follows the classifier through updates, then measure reader
+     * throughput with and without a steady stream of updates.
+     */
+    static void online(WekaClassifier wt, List < String > messages) throws Exception {
+        OnlineModel model = wt.online();
+        System.out.printf("before updates: max |online - classifier| %.3g%n", maxDifference(wt, model, messages));
+
+        Instances reports = wt.loadRawDataset(TRAIN_DATA);
+        List < String > texts = new ArrayList < > ();
+        List < String > labels = new ArrayList < > ();
+        for (int i = 0; i < 1000; i++) {
+            texts.add(reports.instance(i).stringValue(1));
+            labels.add(reports.classAttribute().value((int) reports.instance(i).classValue()));
+            wt.update(texts.get(i), labels.get(i));
+        }
+        model.update(texts.subList(0, 500), labels.subList(0, 500));
+        for (int i = 500; i < texts.size(); i++) {
+            model.update(texts.get(i), labels.get(i));
+        }
+        System.out.printf("after %d updates: max |online - classifier| %.3g%n", model.version(), maxDifference(wt, model, messages));
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        long duration = 2000;
+        double quiet = readThroughput(model, messages, threads, duration, null);
+        long before = model.version();
+        double busy = readThroughput(model, messages, threads, duration, () -> {
+            // about 1000 reports per second
+            for (int i = 0; !Thread.currentThread().isInterrupted(); i++) {
+                model.update(texts.get(i % texts.size()), labels.get(i % labels.size()));
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        System.out.printf("%d reader threads, no updates      %12.0f messages/s%n", threads, quiet);
+        System.out.printf("%d reader threads, %5d updates/s %12.0f messages/s%n", threads,
+            (model.version() - before) * 1000 / duration, busy);
+    }
+
+    private static double maxDifference(WekaClassifier wt, OnlineModel model, List < String > messages) {
+        double max = 0;
+        double[][] expected = wt.distributionForBatch(messages);
+        for (int i = 0; i < messages.size(); i++) {
+            double[] actual = model.distribution(messages.get(i));
+            for (int c = 0; c < actual.length; c++) {
+                max = Math.max(max, Math.abs(actual[c] - expected[i][c]));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * run readers for a while, optionally next to a writer.
+     * @return predictions per second over all readers
+     */
+    private static double readThroughput(OnlineModel model, List < String > messages, int threads, long millis,
+        Runnable writer) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads + 1);
+        Future < ? > writing = writer == null ? null : pool.submit(writer);
+        long deadline = System.currentTimeMillis() + millis;
+        List < Future < Long >> readers = new ArrayList < > ();
+        for (int t = 0; t < threads; t++) {
+            readers.add(pool.submit(() -> {
+                long n = 0;
+                while (System.currentTimeMillis() < deadline) {
+                    for (String message: messages) {
+                        model.predict(message);
+                    }
+                    n += messages.size();
+                }
+                return n;
+            }));
+        }
+        long total = 0;
+        for (Future < Long > reader: readers) {
+            total += reader.get();
+        }
+        if (writing != null) {
+            writing.cancel(true);
+        }
+        pool.shutdownNow();
+        return total * 1000.0 / millis;
+    }
+
+    /**
+     * train hashed models of growing width and compare them with the dictionary model, then
+     * check that two models trained on halves of the data merge into the full model.
+     */
+    static void hashed(WekaClassifier wt, List < String > messages) {
+        Instances test = wt.loadRawDataset(TEST_DATA);
+        System.out.printf("dictionary model: %d/%d correct%n", correct(test, wt::predict), test.numInstances());
+        for (int bits = 8; bits <= 22; bits += 2) {
+            long start = System.nanoTime();
+            HashedNaiveBayes model = wt.fitHashed(bits);
+            long train = System.nanoTime() - start;
+            long score = time(() -> messages.forEach(model::predict));
+            System.out.printf("%2d bits  %9d bytes  fit %8.2f ms  %6.2f us/message  %d/%d correct%n", bits,
+                model.memoryBytes(), train / 1e6, score / 1e3 / messages.size(), correct(test, model::predict), test.numInstances());
+        }
+
+        Instances all = wt.loadRawDataset(TRAIN_DATA);
+        int half = all.numInstances() / 2;
+        HashedNaiveBayes full = new HashedNaiveBayes(18, 0, wt.labels());
+        HashedNaiveBayes merged = new HashedNaiveBayes(18, 0, wt.labels());
+        HashedNaiveBayes second = new HashedNaiveBayes(18, 0, wt.labels());
+        full.add(all);
+        merged.add(new Instances(all, 0, half));
+        second.add(new Instances(all, half, all.numInstances() - half));
+        merged.merge(second);
+        double maxDifference = 0;
+        for (String message: messages) {
+            double[] expected = full.distribution(message);
+            double[] actual = merged.distribution(message);
+            for (int c = 0; c < expected.length; c++) {
+                maxDifference = Math.max(maxDifference, Math.abs(expected[c] - actual[c]));
+            }
+        }
+        System.out.printf("merged halves vs full model: max difference %.3g%n", maxDifference);
+    }
+
+    private static int correct(Instances test, Function < String, String > predict) {
+        int correct = 0;
+        for (Instance row: test) {
+            if (test.classAttribute().value((int) row.classValue()).equals(predict.apply(row.stringValue(1)))) {
+                correct++;
+            }
+        }
+        return correct;
+    }
+
+    /**
+     * train on copies of the training data with buildClassifier() and with ShardedTrainer on a
+     * growing number of threads, and check that every sharded model predicts like the first.
+     */
+    static void sharded(int copies) throws Exception {
+        WekaClassifier wt = new WekaClassifier();
+        wt.transform();
+        Filter filter = wt.getClassifier().getFilter();
+        Instances data = wt.loadRawDataset(syntheticCorpus(copies).getPath());
+        List < String > messages = messages(wt, TEST_DATA);
+
+        FilteredClassifier single = new FilteredClassifier();
+        single.setClassifier(new NaiveBayesMultinomialUpdateable());
+        single.setFilter(Filter.makeCopy(filter));
+        long start = System.nanoTime();
+        single.buildClassifier(data);
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%d messages, %d cores%n", data.numInstances(), Runtime.getRuntime().availableProcessors());
+        System.out.printf("buildClassifier()       %10.1f ms%n", elapsed / 1e6);
+
+        Instances test = wt.loadRawDataset(TEST_DATA);
+        for (int threads: new int[] {1, 2, 4, 8}) {
+            VectorizedFilteredClassifier sharded = new VectorizedFilteredClassifier();
+            sharded.setClassifier(new NaiveBayesMultinomialUpdateable());
+            sharded.setFilter(Filter.makeCopy(filter));
+            start = System.nanoTime();
+            new ShardedTrainer(threads).train(sharded, data);
+            elapsed = System.nanoTime() - start;
+
+            double maxDifference = 0;
+            for (Instance row: test) {
+                double[] expected = single.distributionForInstance(row);
+                double[] actual = sharded.distributionForInstance(row);
+                for (int c = 0; c < expected.length; c++) {
+                    maxDifference = Math.max(maxDifference, Math.abs(expected[c] - actual[c]));
+                }
+            }
+            System.out.printf("ShardedTrainer(%d)       %10.1f ms  max difference %.3g%n", threads, elapsed / 1e6, maxDifference);
+        }
+    }
+
+    /**
+     * compare training from the text, which tokenizes every message, with training from a
+     * vectorized corpus read back from disk.
+     */
+    static void vectorized() throws Exception {
+        WekaClassifier wt = new WekaClassifier();
+        wt.transform();
+        Filter filter = wt.getClassifier().getFilter();
+        Instances dataset = wt.loadRawDataset(TRAIN_DATA);
+
+        File corpus = File.createTempFile("sms-corpus", ".vec");
+        corpus.deleteOnExit();
+        VectorizedCorpus.vectorize(dataset, Filter.makeCopy(filter), 0).write(corpus.getPath());
+
+        long fromText = time(() -> {
+            try {
+                FilteredClassifier classifier = new FilteredClassifier();
+                classifier.setClassifier(new NaiveBayesMultinomial());
+                classifier.setFilter(Filter.makeCopy(filter));
+                classifier.buildClassifier(dataset);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        long fromCorpus = time(() -> {
+            try {
+                VectorizedFilteredClassifier classifier = new VectorizedFilteredClassifier();
+                classifier.setClassifier(new NaiveBayesMultinomial());
+                classifier.buildClassifier(VectorizedCorpus.read(corpus.getPath()));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        System.out.printf("%d rows, vectorized corpus %.1f MB%n", dataset.numInstances(), corpus.length() / 1e6);
+        System.out.printf("fit from text    %10.2f ms%n", fromText / 1e6);
+        System.out.printf("fit from corpus  %10.2f ms%n", fromCorpus / 1e6);
+    }
+
+    /**
+     * train on most of the training data, add the rest with update() and compare the result
+     * with a full retrain over the same vocabulary and with a retrain that rebuilds it.
+     */
+    static void incremental() throws Exception {
+        WekaClassifier incremental = new WekaClassifier();
+        incremental.transform();
+        Instances all = incremental.loadRawDataset(TRAIN_DATA);
+        int split = all.numInstances() * 4 / 5;
+        Instances history = new Instances(all, 0, split);
+        Instances recent = new Instances(all, split, all.numInstances() - split);
+
+        incremental.fit(history);
+        long start = System.nanoTime();
+        incremental.update(recent);
+        long update = System.nanoTime() - start;
+
+        // retrain on everything through the vocabulary the incremental model kept
+        Filter dictionary = Filter.makeCopy(incremental.getClassifier().getFilter());
+        dictionary.setInputFormat(history);
+        Filter.useFilter(history, dictionary);
+        NaiveBayesMultinomialUpdateable retrained = new NaiveBayesMultinomialUpdateable();
+        start = System.nanoTime();
+        retrained.buildClassifier(Filter.useFilter(all, dictionary));
+        long retrain = System.nanoTime() - start;
+
+        WekaClassifier rebuilt = new WekaClassifier();
+        rebuilt.transform();
+        rebuilt.fit(all);
+
+        Instances test = incremental.loadRawDataset(TEST_DATA);
+        Instances filteredTest = Filter.useFilter(test, dictionary);
+        double maxDifference = 0;
+        int correctIncremental = 0;
+        int correctRebuilt = 0;
+        for (int i = 0; i < test.numInstances(); i++) {
+            double[] updated = incremental.getClassifier().distributionForInstance(test.instance(i));
+            double[] expected = retrained.distributionForInstance(filteredTest.instance(i));
+            for (int c = 0; c < expected.length; c++) {
+                maxDifference = Math.max(maxDifference, Math.abs(updated[c] - expected[c]));
+            }
+            String label = test.classAttribute().value((int) test.instance(i).classValue());
+            String text = test.instance(i).stringValue(1);
+            correctIncremental += label.equals(incremental.predict(text)) ? 1 : 0;
+            correctRebuilt += label.equals(rebuilt.predict(text)) ? 1 : 0;
+        }
+
+        System.out.printf("fit on %d messages, update with %d%n", history.numInstances(), recent.numInstances());
+        System.out.printf("update()                      %10.2f ms%n", update / 1e6);
+        System.out.printf("retrain, same vocabulary      %10.2f ms%n", retrain / 1e6);
+        System.out.printf("max |incremental - retrain|   %10.3g%n", maxDifference);
+        System.out.printf("test accuracy: incremental %d/%d, retrain with new vocabulary %d/%d%n",
+            correctIncremental, test.numInstances(), correctRebuilt, test.numInstances());
+    }
+
+    /**
+     * compare the size and load time of the binary model format with Java serialization of the
+     * classifier, then load a synthetic model with a large vocabulary.
+     * @param numWords vocabulary size of the synthetic model
+     */
+    static void modelFile(int numWords) throws Exception {
+        WekaClassifier wt = trainedClassifier();
+        List < String > messages = messages(wt, TEST_DATA);
+
+        File serialized = File.createTempFile("sms-model", ".ser");
+        serialized.deleteOnExit();
+        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(serialized))) {
+            out.writeObject(wt.getClassifier());
+        }
+        File binary = File.createTempFile("sms-model", ".bin");
+        binary.deleteOnExit();
+        BinaryModel.of(wt.getClassifier()).write(binary.getPath());
+
+        WekaClassifier loaded = new WekaClassifier();
+        loaded.loadModel(binary.getPath());
+        double[][] expected = wt.distributionForBatch(messages);
+        double[][] actual = loaded.distributionForBatch(messages);
+        double maxDifference = 0;
+        for (int i = 0; i < expected.length; i++) {
+            for (int c = 0; c < expected[i].length; c++) {
+                maxDifference = Math.max(maxDifference, Math.abs(expected[i][c] - actual[i][c]));
+            }
+        }
+
+        long deserialize = time(() -> {
+            try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(serialized))) {
+                in.readObject();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        long read = time(() -> {
+            try {
+                BinaryModel.read(binary.getPath());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        long rebuild = time(() -> loaded.loadModel(binary.getPath()));
+
+        System.out.printf("model of %d words%n", wt.compile().numWords());
+        System.out.printf("serialized  %8.1f KB, deserialize          %8.2f ms%n", serialized.length() / 1e3, deserialize / 1e6);
+        System.out.printf("binary      %8.1f KB, read                 %8.2f ms, loadModel() %8.2f ms%n",
+            binary.length() / 1e3, read / 1e6, rebuild / 1e6);
+        System.out.printf("max |loaded - trained|  %.3g%n", maxDifference);
+
+        // a synthetic vocabulary, loaded straight into a scorer
+        File large = syntheticModel(wt, numWords);
+        long readLarge = time(() -> {
+            try {
+                BinaryModel.read(large.getPath());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        long compileLarge = time(() -> {
+            try {
+                BinaryModel.read(large.getPath()).compile();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        System.out.printf("%d words: binary %8.1f MB, read %8.2f ms, read + compile() %8.2f ms%n",
+            numWords, large.length() / 1e6, readLarge / 1e6, compileLarge / 1e6);
+    }
+
+    /**
+     * write a model with a synthetic vocabulary and random counts, using the filter options
+     * of a trained classifier.
+     * @return the temporary file, deleted on exit
+     */
+    static File syntheticModel(WekaClassifier wt, int numWords) throws IOException {
+        String[] words = new String[numWords];
+        float[][] weights = new float[2][numWords];
+        Random random = new Random(42);
+        for (int i = 0; i < numWords; i++) {
+            words[i] = "w" + Integer.toString(i, 36);
+            weights[0][i] = 1 + random.nextInt(100);
+            weights[1][i] = 1 + random.nextInt(100);
+        }
+        File file = File.createTempFile("sms-model-large", ".bin");
+        file.deleteOnExit();
+        new BinaryModel(BinaryModel.COUNTS, new String[] {"spam", "ham"},
+            (StringToWordVector) wt.getClassifier().getFilter(), words, weights,
+            new double[] {1000, 4000}, new double[] {51.0 * numWords, 51.0 * numWords}).write(file.getPath());
+        return file;
+    }
+
+    /**
+     * score from a memory-mapped model: check it against the classifier, compare its speed with
+     * CompiledModel, and open a synthetic model with a large vocabulary.
+     * @param numWords vocabulary size of the synthetic model
+     */
+    static void mapped(int numWords) throws Exception {
+        WekaClassifier wt = trainedClassifier();
+        List < String > messages = messages(wt, TEST_DATA);
+
+        File file = File.createTempFile("sms-model", ".bin");
+        file.deleteOnExit();
+        BinaryModel.of(wt.getClassifier()).write(file.getPath());
+        CompiledModel compiled = wt.compile();
+        double[][] expected = wt.distributionForBatch(messages);
+        try (MappedModel model = MappedModel.open(file.getPath())) {
+            double maxDifference = 0;
+            for (int i = 0; i < messages.size(); i++) {
+                double[] actual = model.distribution(messages.get(i));
+                for (int c = 0; c < actual.length; c++) {
+                    maxDifference = Math.max(maxDifference, Math.abs(expected[i][c] - actual[c]));
+                }
+            }
+            Runnable scoreCompiled = () -> {
+                for (int round = 0; round < MEASURE_ROUNDS; round++) {
+                    messages.forEach(compiled::classify);
+                }
+            };
+            Runnable scoreMapped = () -> {
+                for (int round = 0; round < MEASURE_ROUNDS; round++) {
+                    messages.forEach(model::classify);
+                }
+            };
+            long compiledTime = time(scoreCompiled);
+            long mappedTime = time(scoreMapped);
+            double scored = (double) MEASURE_ROUNDS * messages.size();
+            System.out.printf("max |mapped - classifier|  %.3g%n", maxDifference);
+            System.out.printf("CompiledModel %8.0f messages/s%n", scored / (compiledTime / 1e9));
+            System.out.printf("MappedModel   %8.0f messages/s%n", scored / (mappedTime / 1e9));
+        }
+
+        File large = syntheticModel(wt, numWords);
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        long start = System.nanoTime();
+        try (MappedModel model = MappedModel.open(large.getPath())) {
+            long open = System.nanoTime() - start;
+            start = System.nanoTime();
+            String prediction = model.predict("w1 w2 wzz unknown");
+            long first = System.nanoTime() - start;
+            System.gc();
+            long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+            System.out.printf("%d words, %.1f MB file: open %.2f ms, first prediction (%s) %.2f ms, heap %+.1f MB%n",
+                numWords, large.length() / 1e6, open / 1e6, prediction, first / 1e6, (heapAfter - heapBefore) / 1e6);
+        }
+        long read = time(() -> {
+            try {
+                BinaryModel.read(large.getPath()).compile();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        System.out.printf("BinaryModel.read() + compile() for comparison %.2f ms%n", read / 1e6);
+    }
+
+    /**
+     * serve predictions through a ModelHolder while the model file is replaced over and over,
+     * and compare the latencies with a period without deployments.
+     */
+    static void reload() throws Exception {
+        WekaClassifier full = trainedClassifier();
+        List < String > messages = messages(full, TEST_DATA);
+        WekaClassifier half = new WekaClassifier();
+        half.transform();
+        Instances train = half.loadRawDataset(TRAIN_DATA);
+        half.fit(new Instances(train, 0, train.numInstances() / 2));
+
+        File file = File.createTempFile("sms-model", ".bin");
+        file.deleteOnExit();
+        full.saveModel(file.getPath());
+        try (ModelHolder holder = new ModelHolder(file.getPath(), messages.subList(0, 100), 50)) {
+            reportLatencies("steady", holder, messages, () -> {});
+            long before = holder.version();
+            int[] saves = new int[1];
+            reportLatencies("reloading", holder, messages, () -> {
+                (saves[0]++ % 2 == 0 ? half : full).saveModel(file.getPath());
+            });
+            System.out.printf("%d saves, %d models swapped in%n", saves[0], holder.version() - before);
+        }
+    }
+
+    /**
+     * predict from two threads for two seconds while the main thread runs a task every 200 ms.
+     */
+    private static void reportLatencies(String phase, ModelHolder holder, List < String > messages, Runnable task)
+    throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        long end = System.nanoTime() + 2000000000L;
+        List < Future < long[] >> readers = new ArrayList < > ();
+        for (int t = 0; t < 2; t++) {
+            readers.add(pool.submit(() -> {
+                long[] latencies = new long[1024];
+                int n = 0;
+                long failed = 0;
+                for (int i = 0; System.nanoTime() < end; i++) {
+                    long start = System.nanoTime();
+                    String label = holder.predict(messages.get(i % messages.size()));
+                    long latency = System.nanoTime() - start;
+                    failed += label == null ? 1 : 0;
+                    if (n == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, 2 * n);
+                    }
+                    latencies[n++] = latency;
+                }
+                long[] result = Arrays.copyOf(latencies, n + 1);
+                result[n] = failed;
+                return result;
+            }));
+        }
+        while (System.nanoTime() < end) {
+            task.run();
+            Thread.sleep(200);
+        }
+
+        long failed = 0;
+        long[] all = new long[0];
+        for (Future < long[] > reader: readers) {
+            long[] result = reader.get();
+            failed += result[result.length - 1];
+            int from = all.length;
+            all = Arrays.copyOf(all, from + result.length - 1);
+            System.arraycopy(result, 0, all, from, result.length - 1);
+        }
+        pool.shutdown();
+        Arrays.sort(all);
+        System.out.printf("%-10s %8d predictions, %d failed, p50 %6.1f us, p99 %6.1f us, p99.9 %7.1f us, max %7.1f ms%n",
+            phase, all.length, failed, all[all.length / 2] / 1e3, all[(int)(all.length * 0.99)] / 1e3,
+            all[(int)(all.length * 0.999)] / 1e3, all[all.length - 1] / 1e6);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "alloc";
+
+        if (mode.equals("parse")) {
+            parse(args.length > 1 ? Integer.parseInt(args[1]) : 100);
+            return;
+        }
+        if (mode.equals("cache")) {
+            cache(args.length > 1 ? Integer.parseInt(args[1]) : 20);
+            return;
+        }
+        if (mode.equals("incremental")) {
+            incremental();
+            return;
+        }
+        if (mode.equals("sharded")) {
+            sharded(args.length > 1 ? Integer.parseInt(args[1]) : 10);
+            return;
+        }
+        if (mode.equals("model")) {
+            modelFile(args.length > 1 ? Integer.parseInt(args[1]) : 1000000);
+            return;
+        }
+        if (mode.equals("reload")) {
+            reload();
+            return;
+        }
+        if (mode.equals("mapped")) {
+            mapped(args.length > 1 ? Integer.parseInt(args[1]) : 1000000);
+            return;
+        }
+        if (mode.equals("vectorized")) {
+            vectorized();
+            return;
+        }
+        if (mode.equals("parallel")) {
+            parallel(args.length > 1 ? Integer.parseInt(args[1]) : 100);
+            return;
+        }
+
+        WekaClassifier wt = trainedClassifier();
+        List < String > messages = messages(wt, TEST_DATA);
+
+        switch (mode) {
+            case "alloc":
+                allocation(wt, messages);
+                break;
+            case "batch":
+                batch(wt, messages);
+                break;
+            case "async":
+                async(wt, messages);
+                break;
+            case "concurrent":
+                concurrent(wt, messages);
+                break;
+            case "compiled":
+                compiled(wt, messages);
+                break;
+            case "hashed":
+                hashed(wt, messages);
+                break;
+            case "online":
+                online(wt, messages);
+                break;
+            case "tokenize":
+                tokenize(wt, messages);
+                break;
+            default:
+                LOGGER.warning("unknown benchmark: " + mode);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+import java.io.File;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Percentage;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * Java Flight Recorder events of WekaClassifier, so that recordings show slow predictions with
+ * their input and GC pauses next to the training phase that caused them, without an agent.
+ *
+ * The events are off unless a recording enables them, e.g. -XX:StartFlightRecording or
+ * jcmd &lt;pid&gt; JFR.start; they are named sms.*. Events that are off cost a branch: a
+ * disabled event is never committed and the JIT removes its allocation. Predictions are many
+ * and short, so only one in -Dsms.jfr.sample=64 of them is recorded.
+ */
+public final class ClassifierEvents {
+
+    private ClassifierEvents() {}
+
+    /**
+     * A step of training or model I/O, which succeeds or fails. The step sets the other fields
+     * as it learns them, and WekaClassifier.timed() commits the event.
+     */
+    abstract static class StepEvent extends Event {
+        @Label("Succeeded")
+        boolean succeeded;
+
+        /**
+         * end the event and commit it.
+         */
+        void commit(boolean succeeded) {
+            end();
+            if (shouldCommit()) {
+                this.succeeded = succeeded;
+                complete();
+                commit();
+            }
+        }
+
+        /**
+         * set the fields that are only worth computing for an event that is committed.
+         */
+        void complete() {}
+    }
+
+    /**
+     * Loading or saving a model file.
+     */
+    @Category({"SMS Classifier", "Model"})
+    @StackTrace(false)
+    abstract static class ModelFileEvent extends StepEvent {
+        @Label("File")
+        String file;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Format")
+        @Description("binary or serialized")
+        String format;
+
+        ModelFileEvent(String file) {
+            this.file = file;
+        }
+
+        @Override
+        void complete() {
+            bytes = new File(file).length();
+        }
+    }
+
+    @Name("sms.ModelLoad")
+    @Label("Model Load")
+    public static final class ModelLoad extends ModelFileEvent {
+        public ModelLoad(String file) {
+            super(file);
+        }
+    }
+
+    @Name("sms.ModelSave")
+    @Label("Model Save")
+    public static final class ModelSave extends ModelFileEvent {
+        public ModelSave(String file) {
+            super(file);
+        }
+    }
+
+    /**
+     * Training a classifier.
+     */
+    @Name("sms.Fit")
+    @Label("Fit")
+    @Category("SMS Classifier")
+    @StackTrace(false)
+    public static final class Fit extends StepEvent {
+        @Label("Source")
+        @Description("what the classifier was trained from")
+        String source;
+
+        @Label("Messages")
+        @Description("number of training messages, 0 if not known")
+        long messages;
+
+        public Fit(String source) {
+            this.source = source;
+        }
+    }
+
+    /**
+     * Evaluating a classifier on labeled messages.
+     */
+    @Name("sms.Evaluate")
+    @Label("Evaluate")
+    @Category("SMS Classifier")
+    @StackTrace(false)
+    public static final class Evaluate extends Event {
+        @Label("Messages")
+        long messages;
+
+        @Label("Correct")
+        @Percentage
+        double correct;
+
+        @Label("Succeeded")
+        boolean succeeded;
+
+        /**
+         * @param correct fraction of the messages classified correctly
+         */
+        void commit(long messages, double correct, boolean succeeded) {
+            end();
+            if (shouldCommit()) {
+                this.messages = messages;
+                this.correct = correct;
+                this.succeeded = succeeded;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * One predict() call, sampled.
+     */
+    @Name("sms.Predict")
+    @Label("Predict")
+    @Category("SMS Classifier")
+    @Description("a sample of the predict() calls")
+    @StackTrace(false)
+    public static final class Predict extends Event {
+
+        // one in this many calls is recorded, a power of two
+        private static final int SAMPLE = Integer.highestOneBit(Math.max(1, Integer.getInteger("sms.jfr.sample", 64)));
+
+        @Label("Message Length")
+        @Description("characters")
+        int messageLength;
+
+        @Label("Token Count")
+        int tokenCount;
+
+        @Label("Label")
+        String label;
+
+        @Label("Score Margin")
+        @Description("probability of the chosen label minus that of the runner-up")
+        double margin;
+
+        /**
+         * @return a started event if this call is one of the sample and a recording wants it, otherwise null
+         */
+        static Predict sample() {
+            if ((ThreadLocalRandom.current().nextInt() & (SAMPLE - 1)) != 0) {
+                return null;
+            }
+            Predict event = new Predict();
+            if (!event.isEnabled()) {
+                return null;
+            }
+            event.begin();
+            return event;
+        }
+
+        /**
+         * set the fields from the outcome of the prediction, and commit; end() the event first,
+         * and call this only if shouldCommit(), so that the tokens are not counted for nothing.
+         * @param distribution class probabilities, the label is the most likely one
+         */
+        void commit(String text, int tokenCount, String label, double[] distribution) {
+            double best = 0;
+            double second = 0;
+            for (double p: distribution) {
+                if (p > best) {
+                    second = best;
+                    best = p;
+                } else if (p > second) {
+                    second = p;
+                }
+            }
+            this.messageLength = text.length();
+            this.tokenCount = tokenCount;
+            this.label = label;
+            this.margin = best - second;
+            commit();
+        }
+    }
+}
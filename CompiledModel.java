@@ -0,0 +1,190 @@
+import java.util.Arrays;
+
+import weka.classifiers.bayes.NaiveBayesMultinomial;
+import weka.classifiers.bayes.NaiveBayesMultinomialUpdateable;
+import weka.classifiers.meta.FilteredClassifier;
+
+import weka.core.Instances;
+import weka.core.Utils;
+
+import weka.filters.unsupervised.attribute.StringToWordVector;
+
+
+/**
+ * A trained FilteredClassifier flattened into primitive tables.
+ *
+ * Multinomial NaiveBayes scores a message with a per-class sum of per-word log-probabilities,
+ * so after compiling, scoring is a map lookup per token plus a walk over one double[] table.
+ * With an AsciiWordTokenizer and no stemmer, a prediction through classify() allocates nothing,
+ * see WordCounter.
+ * The arithmetic follows NaiveBayesMultinomial.distributionForInstance() step by step, so the
+ * predictions are the same as classifyInstance(). NaiveBayesMultinomialUpdateable keeps raw
+ * counts and takes their logs while scoring; compiling takes the logs once, which agrees with
+ * it up to rounding. Instances are immutable and thread-safe.
+ */
+public class CompiledModel {
+
+    // tokenizes messages into word indices, word indices follow the attribute order of the filtered data
+    private final WordCounter counter;
+
+    // log P(word | class), laid out as [word * numClasses + class]
+    private final double[] logProbOfWordGivenClass;
+
+    // P(class)
+    private final double[] probOfClass;
+
+    private final String[] labels;
+
+    // per-thread buffers for scores
+    private final ThreadLocal < double[][] > scratch = ThreadLocal.withInitial(this::newScratch);
+
+    CompiledModel(WordCounter counter, double[] logProbOfWordGivenClass, double[] probOfClass, String[] labels) {
+        this.counter = counter;
+        this.logProbOfWordGivenClass = logProbOfWordGivenClass;
+        this.probOfClass = probOfClass;
+        this.labels = labels;
+    }
+
+    /**
+     * compile a trained classifier.
+     * @param classifier a FilteredClassifier trained with StringToWordVector and NaiveBayesMultinomial
+     * @return the compiled model
+     */
+    public static CompiledModel compile(FilteredClassifier classifier) throws Exception {
+        if (!(classifier.getFilter() instanceof StringToWordVector)) {
+            throw new IllegalArgumentException("filter must be a StringToWordVector");
+        }
+        if (!(classifier.getClassifier() instanceof NaiveBayesMultinomial)) {
+            throw new IllegalArgumentException("classifier must be a NaiveBayesMultinomial");
+        }
+
+        StringToWordVector filter = (StringToWordVector) classifier.getFilter();
+        NaiveBayesFields.checkWordCounts(filter);
+
+        NaiveBayesMultinomial nb = (NaiveBayesMultinomial) classifier.getClassifier();
+        double[][] logProbs = (double[][]) NaiveBayesFields.read(NaiveBayesMultinomial.class, nb, "m_probOfWordGivenClass");
+        double[] probOfClass = ((double[]) NaiveBayesFields.read(NaiveBayesMultinomial.class, nb, "m_probOfClass")).clone();
+        if (nb instanceof NaiveBayesMultinomialUpdateable) {
+            // the updateable version holds word counts per class, P(class) only needs to be proportional
+            double[] wordsPerClass = (double[]) NaiveBayesFields.read(NaiveBayesMultinomialUpdateable.class, nb, "m_wordsPerClass");
+            double[][] counts = logProbs;
+            logProbs = new double[counts.length][];
+            for (int c = 0; c < counts.length; c++) {
+                logProbs[c] = new double[counts[c].length];
+                for (int i = 0; i < counts[c].length; i++) {
+                    logProbs[c][i] = Math.log(counts[c][i] / wordsPerClass[c]);
+                }
+            }
+        }
+
+        Instances header = filter.getOutputFormat();
+        int numClasses = header.numClasses();
+        WordCounter counter = WordCounter.of(filter);
+
+        // copy the rows of the word attributes, in attribute order
+        double[] table = new double[counter.numWords() * numClasses];
+        int word = 0;
+        for (int i = 0; i < header.numAttributes(); i++) {
+            if (i == header.classIndex()) {
+                continue;
+            }
+            for (int c = 0; c < numClasses; c++) {
+                table[word * numClasses + c] = logProbs[c][i];
+            }
+            word++;
+        }
+
+        String[] labels = new String[numClasses];
+        for (int c = 0; c < numClasses; c++) {
+            labels[c] = header.classAttribute().value(c);
+        }
+        return new CompiledModel(counter, table, probOfClass, labels);
+    }
+
+    /**
+     * classify a message into spam or ham.
+     * @param text message to be classified.
+     * @return a class label (spam or ham)
+     */
+    public String predict(String text) {
+        return labels[classify(text)];
+    }
+
+    /**
+     * classify a message.
+     * @param text message to be classified.
+     * @return index of the most likely class
+     */
+    public int classify(String text) {
+        double[][] s = scratch.get();
+        score(text, s[0], s[1]);
+        return Utils.maxIndex(s[1]);
+    }
+
+    /**
+     * estimate class membership probabilities of a message.
+     * @param text message to be classified.
+     * @return class distribution, indexed like labels()
+     */
+    public double[] distribution(String text) {
+        double[] distribution = new double[labels.length];
+        double sum = score(text, scratch.get()[0], distribution);
+        Utils.normalize(distribution, sum);
+        return distribution;
+    }
+
+    /**
+     * compute the unnormalized class probabilities of a message.
+     * @param text message to be classified.
+     * @param scores scratch buffer of the calling thread, one value per class
+     * @param probs receives one value per class
+     * @return the sum of probs
+     */
+    private double score(String text, double[] scores, double[] probs) {
+        int numClasses = labels.length;
+
+        long start = Metrics.TOKENIZE.start();
+        WordCounter.Counts counts = counter.count(text);
+        Metrics.TOKENIZE.stop(start);
+
+        start = Metrics.SCORE.start();
+        Arrays.fill(scores, 0);
+        for (int i = 0; i < counts.size(); i++) {
+            double freq = counts.value(i);
+            int row = counts.word(i) * numClasses;
+            for (int c = 0; c < numClasses; c++) {
+                scores[c] += freq * logProbOfWordGivenClass[row + c];
+            }
+        }
+
+        double max = scores[Utils.maxIndex(scores)];
+        double sum = 0;
+        for (int c = 0; c < numClasses; c++) {
+            probs[c] = Math.exp(scores[c] - max) * probOfClass[c];
+            sum += probs[c];
+        }
+        Metrics.SCORE.stop(start);
+        return sum;
+    }
+
+    /**
+     * @return the class labels, indexed like the distributions
+     */
+    public String[] labels() {
+        return labels.clone();
+    }
+
+    /**
+     * @return the number of words in the dictionary
+     */
+    public int numWords() {
+        return counter.numWords();
+    }
+
+    /**
+     * give the calling thread its own score buffers.
+     */
+    private double[][] newScratch() {
+        return new double[2][labels.length];
+    }
+}
@@ -0,0 +1,110 @@
+import java.util.List;
+import java.util.stream.Collectors;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.bayes.NaiveBayesMultinomial;
+import weka.classifiers.meta.FilteredClassifier;
+
+import weka.core.Instances;
+import weka.core.SparseInstance;
+import weka.core.Utils;
+
+import weka.filters.unsupervised.attribute.StringToWordVector;
+
+
+/**
+ * Thread-safe scoring engine over one trained FilteredClassifier.
+ *
+ * The trained filter is stateful, so instead of pushing messages through it this class
+ * vectorizes messages itself with a WordCounter over the filter's dictionary. The scorer keeps
+ * its own copy of the filtered header and of the NaiveBayesMultinomial model, so training the
+ * classifier again or updating it does not change a scorer in use; the copies are shared
+ * read-only by every thread.
+ */
+public class ConcurrentScorer {
+
+    // tokenizes messages into word indices, word indices follow the attribute order of the filtered data
+    private final WordCounter counter;
+
+    // word index -> attribute index of the filtered data, which skips the class attribute
+    private final int[] attributeOfWord;
+
+    // header of the filtered data, used to resolve the class labels
+    private final Instances filteredHeader;
+
+    // a copy of the trained model, only distributionForInstance() is called on it
+    private final Classifier model;
+
+    /**
+     * build a scorer sharing the given trained classifier.
+     * @param classifier a FilteredClassifier trained with StringToWordVector and NaiveBayesMultinomial
+     */
+    public ConcurrentScorer(FilteredClassifier classifier) throws Exception {
+        if (!(classifier.getFilter() instanceof StringToWordVector)) {
+            throw new IllegalArgumentException("filter must be a StringToWordVector");
+        }
+        if (!(classifier.getClassifier() instanceof NaiveBayesMultinomial)) {
+            throw new IllegalArgumentException("classifier must be a NaiveBayesMultinomial");
+        }
+
+        StringToWordVector filter = (StringToWordVector) classifier.getFilter();
+        NaiveBayesFields.checkWordCounts(filter);
+
+        filteredHeader = new Instances(filter.getOutputFormat(), 0);
+        model = AbstractClassifier.makeCopy(classifier.getClassifier());
+        counter = WordCounter.of(filter);
+
+        attributeOfWord = new int[counter.numWords()];
+        int word = 0;
+        for (int i = 0; i < filteredHeader.numAttributes(); i++) {
+            if (i != filteredHeader.classIndex()) {
+                attributeOfWord[word++] = i;
+            }
+        }
+    }
+
+    /**
+     * classify a message into spam or ham, may be called from any thread.
+     * @param text message to be classified.
+     * @return a class label (spam or ham)
+     */
+    public String predict(String text) throws Exception {
+        return filteredHeader.classAttribute().value(Utils.maxIndex(distribution(text)));
+    }
+
+    /**
+     * estimate class membership probabilities of a message, may be called from any thread.
+     * @param text message to be classified.
+     * @return class distribution, indexed like the label values
+     */
+    public double[] distribution(String text) throws Exception {
+        // words come in increasing order, as sparse instances need their indices
+        WordCounter.Counts counts = counter.count(text);
+        int[] indices = new int[counts.size()];
+        double[] values = new double[counts.size()];
+        for (int i = 0; i < counts.size(); i++) {
+            indices[i] = attributeOfWord[counts.word(i)];
+            values[i] = counts.value(i);
+        }
+
+        SparseInstance instance = new SparseInstance(1, values, indices, filteredHeader.numAttributes());
+        instance.setDataset(filteredHeader);
+        return model.distributionForInstance(instance);
+    }
+
+    /**
+     * classify many messages, spreading the work over all cores.
+     * @param texts messages to be classified.
+     * @return the class labels, in the order of the messages
+     */
+    public List < String > predictAll(List < String > texts) {
+        return texts.parallelStream().map(text -> {
+            try {
+                return predict(text);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }).collect(Collectors.toList());
+    }
+}
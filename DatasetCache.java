@@ -0,0 +1,145 @@
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+import weka.core.Attribute;
+import weka.core.Instances;
+
+
+/**
+ * Decides whether a binary dataset cache still matches its source text file.
+ *
+ * A cache is keyed by a CRC32C of the source content, the source length and the settings
+ * that shape the cached data (labels, tokenizer and filter options). A cache is only used
+ * when its key matches; otherwise the caller parses the source and the cache is rewritten
+ * on a background thread, replacing the old file atomically once it is complete.
+ */
+public class DatasetCache {
+
+    private static Logger LOGGER = Logger.getLogger("DatasetCache");
+
+    private static final int MAPPING_SIZE = 256 * 1024 * 1024;
+
+    // writes caches in the background, one at a time
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "dataset-cache-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String settings;
+
+    /**
+     * @param settings description of everything besides the source content that shapes the cached data
+     */
+    public DatasetCache(String settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * compute the cache key of a source file under this cache's settings.
+     * @param sourceFile The name of the source file.
+     * @return the key
+     */
+    public long key(String sourceFile) throws IOException {
+        CRC32C content = new CRC32C();
+        long size;
+        try (FileChannel channel = FileChannel.open(Paths.get(sourceFile), StandardOpenOption.READ)) {
+            size = channel.size();
+            for (long position = 0; position < size; position += MAPPING_SIZE) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPING_SIZE, size - position));
+                content.update(mapped);
+            }
+        }
+
+        CRC32C context = new CRC32C();
+        context.update(settings.getBytes(StandardCharsets.UTF_8));
+        context.update(Long.toString(size).getBytes(StandardCharsets.UTF_8));
+        return content.getValue() << 32 | context.getValue();
+    }
+
+    /**
+     * @param cacheFile The name of the cache file.
+     * @param key the expected key
+     * @return true if the cache file exists and was written with the key
+     */
+    public boolean isFresh(String cacheFile, long key) {
+        if (!new File(cacheFile).exists()) {
+            return false;
+        }
+        try (BinaryDataset cached = BinaryDataset.open(cacheFile)) {
+            return cached.key() == key;
+        } catch (IOException e) {
+            // unreadable or older format, treat as stale
+            return false;
+        }
+    }
+
+    /**
+     * write a dataset to the cache on a background thread. The rows are copied out of the
+     * dataset before returning, so the caller may keep using and changing it.
+     * @param dataset dataset parsed from the source, label first and text second
+     * @param cacheFile The name of the cache file.
+     * @param key the key of the source
+     * @return completes once the cache file is in place
+     */
+    public Future < ? > storeInBackground(Instances dataset, String cacheFile, long key) {
+        Attribute classAttribute = dataset.attribute(0);
+        List < String > labels = new ArrayList < > (classAttribute.numValues());
+        for (int i = 0; i < classAttribute.numValues(); i++) {
+            labels.add(classAttribute.value(i));
+        }
+        byte[] rowLabels = new byte[dataset.numInstances()];
+        String[] texts = new String[dataset.numInstances()];
+        for (int i = 0; i < texts.length; i++) {
+            rowLabels[i] = (byte) dataset.instance(i).value(0);
+            texts[i] = dataset.instance(i).stringValue(1);
+        }
+
+        return replaceInBackground(cacheFile, fileName -> BinaryDataset.write(labels, rowLabels, texts, fileName, key));
+    }
+
+    /**
+     * Writes a cache file.
+     */
+    public interface Writer {
+        void write(String fileName) throws IOException;
+    }
+
+    /**
+     * write a cache file on the background thread, into a temporary file that then atomically
+     * replaces the old cache. The writer must not touch data the caller may still change.
+     * @param cacheFile The name of the cache file.
+     * @param writer writes the cache to the file name it is given
+     * @return completes once the cache file is in place
+     */
+    public static Future < ? > replaceInBackground(String cacheFile, Writer writer) {
+        return WRITER.submit(() -> {
+            File tmp = new File(cacheFile + ".tmp");
+            try {
+                writer.write(tmp.getPath());
+                Files.move(tmp.toPath(), Paths.get(cacheFile), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+                LOGGER.info("Rebuilt cache: " + cacheFile);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warning("cannot write cache " + cacheFile + ": " + e);
+                tmp.delete();
+            }
+        });
+    }
+}
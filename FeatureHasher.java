@@ -0,0 +1,151 @@
+import java.util.Arrays;
+
+
+/**
+ * Maps the words of a message to 2^bits buckets with the hashing trick, instead of looking
+ * them up in a dictionary.
+ *
+ * Words are the tokens of AsciiWordTokenizer. A word's bucket is taken from the high bits of
+ * its mixed hash and its sign from the lowest bit, so that words sharing a bucket tend to
+ * cancel instead of add up. Nothing is stored per word: memory depends on the bucket count
+ * only, and vectors built on different machines with the same bits and seed line up.
+ */
+public class FeatureHasher {
+
+    private final int bits;
+    private final int seed;
+    private final boolean signed;
+
+    private final ThreadLocal < Features > features = ThreadLocal.withInitial(Features::new);
+
+    /**
+     * The buckets of one message in increasing order, with the sum of the signs of the words
+     * that fell in each (their number when unsigned). Owned by the calling thread and
+     * overwritten by its next hash().
+     */
+    public static final class Features {
+        final AsciiWordTokenizer tokenizer = new AsciiWordTokenizer();
+
+        // bucket << 1 | 1 if negative, one per word
+        int[] keys = new int[64];
+        int numKeys;
+
+        int[] buckets = new int[64];
+        float[] values = new float[64];
+        int size;
+
+        /**
+         * @return number of distinct buckets
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return the i-th distinct bucket
+         */
+        public int bucket(int i) {
+            return buckets[i];
+        }
+
+        /**
+         * @return value of the i-th distinct bucket
+         */
+        public float value(int i) {
+            return values[i];
+        }
+    }
+
+    /**
+     * @param bits log2 of the number of buckets, 1 to 30
+     * @param seed mixed into every hash, vectors only line up between hashers with the same seed
+     * @param signed whether words add +1 or -1 to their bucket, or always +1
+     */
+    public FeatureHasher(int bits, int seed, boolean signed) {
+        if (bits < 1 || bits > 30) {
+            throw new IllegalArgumentException("bits must be between 1 and 30");
+        }
+        this.bits = bits;
+        this.seed = seed;
+        this.signed = signed;
+    }
+
+    /**
+     * @return log2 of the number of buckets
+     */
+    public int bits() {
+        return bits;
+    }
+
+    /**
+     * @return the seed mixed into every hash
+     */
+    public int seed() {
+        return seed;
+    }
+
+    /**
+     * @return whether words carry a sign
+     */
+    public boolean signed() {
+        return signed;
+    }
+
+    /**
+     * @return the number of buckets
+     */
+    public int numBuckets() {
+        return 1 << bits;
+    }
+
+    /**
+     * hash the words of a message.
+     * @param text the message.
+     * @return the buckets, valid until this thread hashes again
+     */
+    public Features hash(String text) {
+        Features f = features.get();
+        f.numKeys = 0;
+        f.tokenizer.tokenize(text);
+        while (f.tokenizer.advance()) {
+            int h = mix(f.tokenizer.tokenHash() ^ seed);
+            if (f.numKeys == f.keys.length) {
+                f.keys = Arrays.copyOf(f.keys, f.numKeys * 2);
+            }
+            f.keys[f.numKeys++] = (h >>> (32 - bits)) << 1 | (signed ? h & 1 : 0);
+        }
+
+        // sort by bucket and add up the words of each bucket
+        Arrays.sort(f.keys, 0, f.numKeys);
+        if (f.buckets.length < f.numKeys) {
+            f.buckets = new int[f.keys.length];
+            f.values = new float[f.keys.length];
+        }
+        int n = 0;
+        for (int i = 0; i < f.numKeys; i++) {
+            int bucket = f.keys[i] >>> 1;
+            float value = (f.keys[i] & 1) != 0 ? -1 : 1;
+            if (n > 0 && f.buckets[n - 1] == bucket) {
+                f.values[n - 1] += value;
+            } else {
+                f.buckets[n] = bucket;
+                f.values[n] = value;
+                n++;
+            }
+        }
+        f.size = n;
+        return f;
+    }
+
+    /**
+     * the MurmurHash3 finalizer, spreads String.hashCode() over all bits.
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
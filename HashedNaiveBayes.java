@@ -0,0 +1,207 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+
+/**
+ * Multinomial NaiveBayes over hashed words, trained and scored on plain arrays.
+ *
+ * Like the default StringToWordVector, a message counts each of its buckets once. Word counts
+ * are kept per class in an int[] of 2^bits buckets, so memory is fixed up front whatever the
+ * vocabulary, and models trained separately with the same bits, seed and labels are combined
+ * by adding their arrays, see merge(). Counts must stay non-negative for NaiveBayes, so the
+ * words are hashed unsigned.
+ * Training is not thread-safe; a trained model can be shared by any number of scoring threads.
+ */
+public class HashedNaiveBayes {
+
+    private final FeatureHasher hasher;
+    private final String[] labels;
+
+    // [class][bucket] number of messages of the class with a word in the bucket
+    private final int[][] wordCounts;
+
+    // messages per class
+    private final long[] docsPerClass;
+
+    // sum of wordCounts per class
+    private final long[] wordsPerClass;
+
+    // buckets with a count in any class, the size of the vocabulary for smoothing
+    private int usedBuckets;
+
+    /**
+     * create an empty model.
+     * @param bits log2 of the number of buckets
+     * @param seed hash seed, models only merge with the same seed
+     * @param labels the class labels
+     */
+    public HashedNaiveBayes(int bits, int seed, List < String > labels) {
+        this.hasher = new FeatureHasher(bits, seed, false);
+        this.labels = labels.toArray(new String[0]);
+        this.wordCounts = new int[this.labels.length][hasher.numBuckets()];
+        this.docsPerClass = new long[this.labels.length];
+        this.wordsPerClass = new long[this.labels.length];
+    }
+
+    /**
+     * learn from one labeled message.
+     * @param text the message.
+     * @param classIndex index of its label
+     */
+    public void add(String text, int classIndex) {
+        FeatureHasher.Features features = hasher.hash(text);
+        int[] counts = wordCounts[classIndex];
+        for (int i = 0; i < features.size(); i++) {
+            int bucket = features.bucket(i);
+            if (counts[bucket]++ == 0 && !usedByOtherClass(bucket, classIndex)) {
+                usedBuckets++;
+            }
+        }
+        wordsPerClass[classIndex] += features.size();
+        docsPerClass[classIndex]++;
+    }
+
+    /**
+     * learn from a dataset whose first attribute is the label and second attribute is the
+     * text. Labels are matched by name, rows with a missing or unknown label are skipped.
+     * @param dataset the labeled messages
+     */
+    public void add(Instances dataset) {
+        int[] classIndex = new int[dataset.attribute(0).numValues()];
+        for (int i = 0; i < classIndex.length; i++) {
+            classIndex[i] = indexOf(dataset.attribute(0).value(i));
+        }
+        for (Instance row: dataset) {
+            if (!row.isMissing(0) && classIndex[(int) row.value(0)] >= 0) {
+                add(row.stringValue(1), classIndex[(int) row.value(0)]);
+            }
+        }
+    }
+
+    /**
+     * add the counts of another model to this one.
+     * @param other a model with the same bits, seed and labels
+     */
+    public void merge(HashedNaiveBayes other) {
+        if (other.hasher.bits() != hasher.bits() || other.hasher.seed() != hasher.seed()
+            || !Arrays.equals(other.labels, labels)) {
+            throw new IllegalArgumentException("models differ in bits, seed or labels");
+        }
+        for (int c = 0; c < labels.length; c++) {
+            int[] counts = wordCounts[c];
+            int[] otherCounts = other.wordCounts[c];
+            for (int b = 0; b < counts.length; b++) {
+                counts[b] += otherCounts[b];
+            }
+            docsPerClass[c] += other.docsPerClass[c];
+            wordsPerClass[c] += other.wordsPerClass[c];
+        }
+
+        usedBuckets = 0;
+        for (int b = 0; b < hasher.numBuckets(); b++) {
+            if (usedByOtherClass(b, -1)) {
+                usedBuckets++;
+            }
+        }
+    }
+
+    /**
+     * @return true if a class other than the given one has a count in the bucket
+     */
+    private boolean usedByOtherClass(int bucket, int classIndex) {
+        for (int c = 0; c < labels.length; c++) {
+            if (c != classIndex && wordCounts[c][bucket] != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * classify a message into spam or ham.
+     * @param text message to be classified.
+     * @return a class label (spam or ham)
+     */
+    public String predict(String text) {
+        return labels[Utils.maxIndex(distribution(text))];
+    }
+
+    /**
+     * estimate class membership probabilities of a message, with Laplace smoothing as in
+     * NaiveBayesMultinomial over the buckets seen in training. Buckets not seen in training
+     * are ignored, like words missing from a dictionary.
+     * @param text message to be classified.
+     * @return class distribution, indexed like labels()
+     */
+    public double[] distribution(String text) {
+        int numClasses = labels.length;
+        long numDocs = 0;
+        for (long docs: docsPerClass) {
+            numDocs += docs;
+        }
+
+        FeatureHasher.Features features = hasher.hash(text);
+        double[] scores = new double[numClasses];
+        for (int c = 0; c < numClasses; c++) {
+            int[] counts = wordCounts[c];
+            double total = wordsPerClass[c] + usedBuckets;
+            for (int i = 0; i < features.size(); i++) {
+                int bucket = features.bucket(i);
+                if (counts[bucket] != 0 || usedByOtherClass(bucket, c)) {
+                    scores[c] += Math.log((counts[bucket] + 1) / total);
+                }
+            }
+            scores[c] += Math.log((docsPerClass[c] + 1.0) / (numDocs + numClasses));
+        }
+
+        double max = scores[Utils.maxIndex(scores)];
+        double[] distribution = new double[numClasses];
+        for (int c = 0; c < numClasses; c++) {
+            distribution[c] = Math.exp(scores[c] - max);
+        }
+        Utils.normalize(distribution);
+        return distribution;
+    }
+
+    private int indexOf(String label) {
+        for (int c = 0; c < labels.length; c++) {
+            if (labels[c].equals(label)) {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return log2 of the number of buckets
+     */
+    public int bits() {
+        return hasher.bits();
+    }
+
+    /**
+     * @return the class labels, indexed like the distributions
+     */
+    public List < String > labels() {
+        return new ArrayList < > (Arrays.asList(labels));
+    }
+
+    /**
+     * @return the number of messages learned per class
+     */
+    public long[] docsPerClass() {
+        return docsPerClass.clone();
+    }
+
+    /**
+     * @return bytes held by the count tables, known from bits and labels alone
+     */
+    public long memoryBytes() {
+        return 4L * labels.length * hasher.numBuckets();
+    }
+}
@@ -0,0 +1,400 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+
+/**
+ * Replays messages against a scoring path at a sustained rate and reports latency percentiles
+ * and throughput, to find the rate one JVM can serve.
+ *
+ * The load is open loop: message i is due at start + i / rate, whether or not earlier messages
+ * are done, and a pool of worker threads serves the due messages in order, like a server with
+ * an unbounded queue. Latency is measured from the time a message was due, not from when a
+ * worker got to it, so time spent waiting behind slow predictions is counted; measuring from
+ * the send time would hide it (coordinated omission). The service time alone is reported too.
+ * Messages still unserved a whole duration after the end are counted at the latency they had
+ * reached, as a lower bound. With rate 0 the workers send as fast as they can (closed loop),
+ * which gives the most the target can do, but then latency is service time only.
+ *
+ * The http target posts the messages to a ScoringServer at --url instead, over one keep-alive
+ * connection per worker. With --idle n, n more connections each make one request and then stay
+ * open and idle during the runs, as a crowd of quiet clients would; how many of them the server
+ * kept open is reported at the end.
+ *
+ * Usage: java -cp weka.jar:. LoadGenerator [--target compiled|scorer|classifier|http]
+ *        [--rate messages/s[,messages/s...]] [--threads n] [--duration seconds] [--synthetic messages]
+ *        [--url http://localhost:8080/predict] [--idle connections]
+ */
+public class LoadGenerator {
+
+    private static Logger LOGGER = Logger.getLogger("LoadGenerator");
+
+    private static final String MODEL = "models/sms.dat";
+    private static final String TEST_DATA = "dataset/test.txt";
+
+    private static final long PARK_SLACK_NANOS = 60000;
+    private static final String URL = "http://localhost:8080/predict";
+
+    private final Function < String, String > target;
+    private final List < String > messages;
+    private final int threads;
+
+    /**
+     * The outcome of one run.
+     */
+    static final class Result {
+        final double targetRate;
+        final double throughput;
+        final LatencyHistogram latency;
+        final LatencyHistogram service;
+        final long failed;
+        final long unserved;
+
+        Result(double targetRate, double throughput, LatencyHistogram latency, LatencyHistogram service, long failed,
+            long unserved) {
+            this.targetRate = targetRate;
+            this.throughput = throughput;
+            this.latency = latency;
+            this.service = service;
+            this.failed = failed;
+            this.unserved = unserved;
+        }
+
+        /**
+         * @return true if the target fell behind the arrival rate
+         */
+        boolean saturated() {
+            return targetRate > 0 && (unserved > 0 || throughput < 0.95 * targetRate);
+        }
+    }
+
+    /**
+     * @param target the scoring path, called from several threads at once
+     * @param messages messages to replay, in order and round again
+     * @param threads number of worker threads
+     */
+    LoadGenerator(Function < String, String > target, List < String > messages, int threads) {
+        this.target = target;
+        this.messages = messages;
+        this.threads = threads;
+    }
+
+    /**
+     * replay messages for a while.
+     * @param rate messages per second, 0 to send as fast as the workers can
+     * @param seconds how long messages arrive
+     * @return throughput and latencies
+     */
+    Result run(double rate, double seconds) throws Exception {
+        LatencyHistogram latency = new LatencyHistogram();
+        LatencyHistogram service = new LatencyHistogram();
+        LongAdder failed = new LongAdder();
+        LongAdder unserved = new LongAdder();
+        AtomicLong next = new AtomicLong();
+        AtomicLong lastDone = new AtomicLong();
+
+        long durationNanos = (long)(seconds * 1e9);
+        double interval = rate > 0 ? 1e9 / rate : 0;
+        long scheduled = rate > 0 ? (long)(rate * seconds) : Long.MAX_VALUE;
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+        long deadline = end + durationNanos;
+        List < Future < ? >> workers = new ArrayList < > ();
+        for (int t = 0; t < threads; t++) {
+            workers.add(pool.submit(() -> {
+                for (long index; (index = next.getAndIncrement()) < scheduled;) {
+                    long due = rate > 0 ? start + Math.round(index * interval) : System.nanoTime();
+                    for (long wait; (wait = due - System.nanoTime()) > 0;) {
+                        // a parked thread wakes up tens of microseconds late, yield for the last stretch
+                        if (wait > 2 * PARK_SLACK_NANOS) {
+                            LockSupport.parkNanos(wait - PARK_SLACK_NANOS);
+                        } else {
+                            Thread.yield();
+                        }
+                    }
+                    long begin = System.nanoTime();
+                    if (rate > 0 ? begin > deadline : begin > end) {
+                        if (rate > 0) {
+                            latency.record(begin - due);
+                            unserved.increment();
+                            continue;
+                        }
+                        break;
+                    }
+                    String label = target.apply(messages.get((int)(index % messages.size())));
+                    long done = System.nanoTime();
+                    latency.record(done - due);
+                    service.record(done - begin);
+                    lastDone.accumulateAndGet(done, Math::max);
+                    if (label == null) {
+                        failed.increment();
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future < ? > worker: workers) {
+            worker.get();
+        }
+        pool.shutdown();
+
+        double elapsed = (Math.max(lastDone.get(), end) - start) / 1e9;
+        return new Result(rate, service.count() / elapsed, latency, service, failed.sum(), unserved.sum());
+    }
+
+    /**
+     * A keep-alive HTTP/1.1 connection that posts plain text. It does much less work per request
+     * than java.net.http.HttpClient, which on a machine shared with the server would otherwise be
+     * measured instead of the server.
+     */
+    private static final class HttpConnection {
+        private final URI uri;
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+
+        HttpConnection(URI uri) {
+            this.uri = uri;
+        }
+
+        /**
+         * @return the body of the response without its line end, or null if the status is not 200 OK
+         */
+        String post(String text) throws IOException {
+            if (socket == null) {
+                socket = new Socket(uri.getHost(), uri.getPort());
+                socket.setTcpNoDelay(true);
+                in = new BufferedInputStream(socket.getInputStream());
+                out = new BufferedOutputStream(socket.getOutputStream());
+            }
+            byte[] body = text.getBytes(StandardCharsets.UTF_8);
+            out.write(("POST " + uri.getRawPath() + " HTTP/1.1\r\nHost: " + uri.getHost()
+                + "\r\nContent-Type: text/plain; charset=utf-8\r\nContent-Length: " + body.length + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+            out.write(body);
+            out.flush();
+
+            String status = line();
+            int length = 0;
+            for (String header; !(header = line()).isEmpty();) {
+                if (header.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                    length = Integer.parseInt(header.substring(15).trim());
+                }
+            }
+            byte[] response = in.readNBytes(length);
+            if (response.length < length) {
+                throw new EOFException("connection closed by the server");
+            }
+            return status.startsWith("HTTP/1.1 200") ? new String(response, StandardCharsets.UTF_8).trim() : null;
+        }
+
+        /**
+         * @return one line of the response head, without its line end
+         */
+        private String line() throws IOException {
+            StringBuilder line = new StringBuilder();
+            for (int c; (c = in.read()) != '\n';) {
+                if (c < 0) {
+                    throw new EOFException("connection closed by the server");
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        /**
+         * @return true if the server has not closed the connection
+         */
+        boolean isOpen() {
+            if (socket == null) {
+                return false;
+            }
+            try {
+                socket.setSoTimeout(1);
+                return in.read() >= 0;
+            } catch (SocketTimeoutException e) {
+                // nothing to read and not closed
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void close() {
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                LOGGER.warning(e.getMessage());
+            }
+            socket = null;
+        }
+    }
+
+    /**
+     * @return the message column of the test data, or messages made up from the dictionary
+     */
+    private static List < String > messages(WekaClassifier wt, int synthetic) {
+        if (synthetic > 0) {
+            return WarmUp.syntheticSample(wt.getClassifier().getFilter().getOutputFormat(), synthetic);
+        }
+        List < String > messages = new ArrayList < > ();
+        wt.loadRawDataset(TEST_DATA).forEach(row -> messages.add(row.stringValue(1)));
+        return messages;
+    }
+
+    /**
+     * @return the named scoring path over the classifier, or over the server at url for http,
+     *         safe to call from several threads
+     */
+    private static Function < String, String > target(WekaClassifier wt, String name, String url) throws Exception {
+        switch (name) {
+            case "compiled":
+                return wt.compile()::predict;
+            case "scorer":
+                ConcurrentScorer scorer = new ConcurrentScorer(wt.getClassifier());
+                return text -> {
+                    try {
+                        return scorer.predict(text);
+                    } catch (Exception e) {
+                        return null;
+                    }
+                };
+            case "classifier":
+                // predict() goes through the stateful filter, one message at a time
+                return text -> {
+                    synchronized(wt) {
+                        return wt.predict(text);
+                    }
+                };
+            case "http":
+                URI uri = URI.create(url);
+                ThreadLocal < HttpConnection > connections = ThreadLocal.withInitial(() -> new HttpConnection(uri));
+                return text -> {
+                    HttpConnection connection = connections.get();
+                    try {
+                        return connection.post(text);
+                    } catch (IOException e) {
+                        // reconnect on the next call
+                        connection.close();
+                        return null;
+                    }
+                };
+            default:
+                throw new IllegalArgumentException("unknown target: " + name);
+        }
+    }
+
+    /**
+     * open connections to the server that make one request each, and then stay idle.
+     * @param count number of connections
+     * @return the open connections
+     */
+    private static List < HttpConnection > idleConnections(String url, List < String > messages, int count)
+    throws IOException {
+        List < HttpConnection > connections = new ArrayList < > (count);
+        for (int i = 0; i < count; i++) {
+            HttpConnection connection = new HttpConnection(URI.create(url));
+            connection.post(messages.get(i % messages.size()));
+            connections.add(connection);
+        }
+        return connections;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String targetName = "compiled";
+        String rates = "0";
+        int threads = Runtime.getRuntime().availableProcessors();
+        double seconds = 30;
+        int synthetic = 0;
+        String url = URL;
+        int idle = 0;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--target":
+                    targetName = args[i + 1];
+                    break;
+                case "--rate":
+                    rates = args[i + 1];
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--duration":
+                    seconds = Double.parseDouble(args[i + 1]);
+                    break;
+                case "--synthetic":
+                    synthetic = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--url":
+                    url = args[i + 1];
+                    break;
+                case "--idle":
+                    idle = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    LOGGER.warning("unknown option: " + args[i]);
+                    return;
+            }
+        }
+
+        WekaClassifier wt = new WekaClassifier();
+        if (!new File(MODEL).exists() || !wt.loadModel(MODEL)) {
+            wt.transform();
+            wt.fit();
+        }
+        List < String > messages = messages(wt, synthetic);
+        Function < String, String > target = target(wt, targetName, url);
+        LOGGER.info(WarmUp.run(target, messages, 5000).toString());
+        List < HttpConnection > idleConnections = idleConnections(url, messages, idle);
+
+        LoadGenerator generator = new LoadGenerator(target, messages, threads);
+        System.out.printf("%s, %d threads, %d messages, %.0f s per rate%n", targetName, threads, messages.size(), seconds);
+        System.out.printf("%10s %12s %9s %9s %9s %9s %12s %8s %9s%n", "target/s", "achieved/s", "p50 us", "p99 us",
+            "p99.9 us", "max ms", "service p99", "failed", "unserved");
+        for (String rate: rates.split(",")) {
+            Result result = generator.run(Double.parseDouble(rate), seconds);
+            System.out.printf("%10s %12.0f %9.1f %9.1f %9.1f %9.1f %12.1f %8d %9d%s%n",
+                result.targetRate > 0 ? String.format("%.0f", result.targetRate) : "max", result.throughput,
+                result.latency.percentile(50) / 1e3, result.latency.percentile(99) / 1e3,
+                result.latency.percentile(99.9) / 1e3, result.latency.max() / 1e6, result.service.percentile(99) / 1e3,
+                result.failed, result.unserved, result.saturated() ? "  saturated" : "");
+        }
+        if (idle > 0) {
+            int open = 0;
+            for (HttpConnection connection: idleConnections) {
+                open += connection.isOpen() ? 1 : 0;
+                connection.close();
+            }
+            System.out.printf("%d of %d idle connections still open%n", open, idle);
+        }
+        if (Metrics.ENABLED) {
+            System.out.print(Metrics.dump());
+        }
+    }
+}
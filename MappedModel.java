@@ -0,0 +1,255 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import weka.core.Utils;
+
+
+/**
+ * Scores messages straight out of a memory-mapped BinaryModel file.
+ *
+ * Messages are counted by a WordCounter, as for CompiledModel, whose words are looked up in the
+ * file's slot table and compared with the UTF-8 word blob, and weights are read from the file's
+ * float tables, so nothing per word is copied onto the heap.
+ * Opening a model reads its header only: it takes the same time whatever the vocabulary size,
+ * and every process mapping the same file shares one copy of its pages in the OS page cache.
+ * The arithmetic follows NaiveBayesMultinomialUpdateable as in OnlineModel; counts are stored
+ * exactly, so predictions are the same as the classifier the file was saved from. Models of
+ * NaiveBayesMultinomial hold float log-probabilities and agree up to rounding.
+ * Scoring is thread-safe. close() closes the file; the mapping itself is released once the
+ * model is no longer referenced.
+ */
+public class MappedModel implements Closeable {
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final BinaryModel.Layout layout;
+    private final String[] labels;
+
+    // looks words up in the file's word table
+    private final WordCounter counter;
+
+    // log of the class priors and, for counts, of the word totals per class
+    private final double[] logProbOfClass;
+    private final double[] logWordsPerClass;
+
+    private final ThreadLocal < double[] > scoreBuffer;
+
+    /**
+     * The file's word table, for WordCounter.
+     */
+    private final class WordTable implements WordCounter.Dictionary {
+
+        @Override
+        public int get(String word) {
+            return lookup(word);
+        }
+
+        @Override
+        public int get(char[] chars, int offset, int length, int hash) {
+            return lookup(chars, offset, length, hash);
+        }
+
+        @Override
+        public int size() {
+            return layout.numWords;
+        }
+    }
+
+    private MappedModel(FileChannel channel, String fileName) throws Exception {
+        this.channel = channel;
+        if (channel.size() > Integer.MAX_VALUE) {
+            throw new IOException("model file larger than 2 GB");
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        layout = new BinaryModel.Layout(buffer, fileName);
+        labels = layout.labels;
+
+        counter = new WordCounter(new WordTable(), layout.newFilter());
+        scoreBuffer = ThreadLocal.withInitial(() -> new double[labels.length]);
+
+        logProbOfClass = new double[labels.length];
+        logWordsPerClass = new double[labels.length];
+        for (int c = 0; c < labels.length; c++) {
+            logProbOfClass[c] = Math.log(layout.probOfClass[c]);
+            logWordsPerClass[c] = Math.log(layout.wordsPerClass[c]);
+        }
+    }
+
+    /**
+     * map a model file written by BinaryModel.write().
+     * @param fileName The name of the file.
+     * @return the model, to be closed after use
+     */
+    public static MappedModel open(String fileName) throws Exception {
+        FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        try {
+            return new MappedModel(channel, fileName);
+        } catch (Exception e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * look up a word.
+     * @param word the word
+     * @return index of the word, or -1 if it is not in the dictionary
+     */
+    public int lookup(String word) {
+        return lookup(word.toCharArray(), 0, word.length(), word.hashCode());
+    }
+
+    /**
+     * look up the word held in chars[offset, offset + length).
+     * @param hash String.hashCode() of the word
+     * @return index of the word, or -1 if it is not in the dictionary
+     */
+    public int lookup(char[] chars, int offset, int length, int hash) {
+        int mask = layout.numSlots - 1;
+        for (int slot = Vocabulary.mix(hash) & mask;; slot = (slot + 1) & mask) {
+            int index = buffer.getInt(layout.slotsStart + 4 * slot);
+            if (index < 0 || matches(index, chars, offset, length)) {
+                return index;
+            }
+        }
+    }
+
+    /**
+     * compare a word of the blob with chars, encoding the chars to UTF-8 on the way.
+     */
+    private boolean matches(int word, char[] chars, int offset, int length) {
+        int position = layout.blobStart + buffer.getInt(layout.offsetsStart + 4 * word);
+        int end = layout.blobStart + buffer.getInt(layout.offsetsStart + 4 * (word + 1));
+        for (int i = offset; i < offset + length; i++) {
+            int codePoint = chars[i];
+            if (Character.isHighSurrogate(chars[i]) && i + 1 < offset + length && Character.isLowSurrogate(chars[i + 1])) {
+                codePoint = Character.toCodePoint(chars[i], chars[++i]);
+            } else if (Character.isSurrogate(chars[i])) {
+                // String.getBytes() writes unpaired surrogates as '?'
+                codePoint = '?';
+            }
+            if (codePoint < 0x80) {
+                if (position == end || buffer.get(position++) != codePoint) {
+                    return false;
+                }
+                continue;
+            }
+            int numBytes = codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+            int lead = numBytes == 2 ? 0xC0 : numBytes == 3 ? 0xE0 : 0xF0;
+            if (end - position < numBytes) {
+                return false;
+            }
+            for (int b = 0; b < numBytes; b++) {
+                int shift = 6 * (numBytes - 1 - b);
+                int expected = b == 0 ? lead | (codePoint >> shift) : 0x80 | ((codePoint >> shift) & 0x3F);
+                if ((buffer.get(position++) & 0xFF) != expected) {
+                    return false;
+                }
+            }
+        }
+        return position == end;
+    }
+
+    /**
+     * @return the weight of a word in a class, a count or a log-probability
+     */
+    public double weight(int word, int classIndex) {
+        return buffer.getFloat(layout.weightsStart(classIndex) + 4 * word);
+    }
+
+    /**
+     * classify a message into spam or ham.
+     * @param text message to be classified.
+     * @return a class label (spam or ham)
+     */
+    public String predict(String text) {
+        return labels[classify(text)];
+    }
+
+    /**
+     * classify a message.
+     * @param text message to be classified.
+     * @return index of the most likely class
+     */
+    public int classify(String text) {
+        return Utils.maxIndex(score(text));
+    }
+
+    /**
+     * estimate class membership probabilities of a message.
+     * @param text message to be classified.
+     * @return class distribution, indexed like labels()
+     */
+    public double[] distribution(String text) {
+        double[] scores = score(text);
+        double max = scores[Utils.maxIndex(scores)];
+        double[] distribution = new double[labels.length];
+        for (int c = 0; c < labels.length; c++) {
+            distribution[c] = Math.exp(scores[c] - max);
+        }
+        Utils.normalize(distribution);
+        return distribution;
+    }
+
+    /**
+     * compute the log of the unnormalized class probabilities of a message. For counts the
+     * steps are those of NaiveBayesMultinomialUpdateable; NaiveBayesMultinomial multiplies by
+     * the prior after exp(), which only changes the rounding.
+     * @return the calling thread's score buffer
+     */
+    private double[] score(String text) {
+        long start = Metrics.TOKENIZE.start();
+        WordCounter.Counts words = counter.count(text);
+        Metrics.TOKENIZE.stop(start);
+
+        start = Metrics.SCORE.start();
+        double[] scores = scoreBuffer.get();
+        boolean counts = layout.kind == BinaryModel.COUNTS;
+        for (int c = 0; c < labels.length; c++) {
+            scores[c] = logProbOfClass[c];
+        }
+
+        // words in index order, each with its number of occurrences or 1
+        int numWords = 0;
+        for (int i = 0; i < words.size(); i++) {
+            int word = words.word(i);
+            double freq = words.value(i);
+            numWords += freq;
+            for (int c = 0; c < labels.length; c++) {
+                double weight = weight(word, c);
+                scores[c] += freq * (counts ? Math.log(weight) : weight);
+            }
+        }
+        if (counts) {
+            for (int c = 0; c < labels.length; c++) {
+                scores[c] -= numWords * logWordsPerClass[c];
+            }
+        }
+        Metrics.SCORE.stop(start);
+        return scores;
+    }
+
+    /**
+     * @return the class labels, indexed like the distributions
+     */
+    public String[] labels() {
+        return labels.clone();
+    }
+
+    /**
+     * @return the number of words in the dictionary
+     */
+    public int numWords() {
+        return layout.numWords;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,210 @@
+import java.lang.management.ManagementFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
+
+/**
+ * Timers for the stages of the hot paths, so that a slow predict() or fit() can be traced to
+ * the stage to blame.
+ *
+ * Enabled with -Dsms.metrics=true. Every timer counts its calls, keeps a LatencyHistogram, is
+ * registered as an MBean named sms:type=Timer,name=&lt;stage&gt; and shows up in dump(); any
+ * class can add its own stages with timer(). Timing a call costs two System.nanoTime() calls
+ * and a few atomic increments, about 100 ns, so the stages run once per message time a random
+ * sample of their calls, one in -Dsms.metrics.sample=16 by default, and the rest cost a counter
+ * increment. When disabled, ENABLED is a constant false, so the JIT removes the timing code.
+ *
+ * Stages: parse (loading a raw data set), tokenize (tokens to word indices in CompiledModel
+ * and MappedModel), filter (StringToWordVector on one message, tokenization included), score
+ * (NaiveBayes on the word vector), predict (a whole predict()), vectorize (filtering a training
+ * set), fit, model.load and model.save.
+ */
+public final class Metrics {
+
+    private static Logger LOGGER = Logger.getLogger("Metrics");
+
+    public static final boolean ENABLED = Boolean.getBoolean("sms.metrics");
+
+    // one in this many calls of a per-message stage is timed, a power of two
+    private static final int SAMPLE = Integer.highestOneBit(Math.max(1, Integer.getInteger("sms.metrics.sample", 16)));
+
+    private static final Map < String, Timer > TIMERS = new ConcurrentSkipListMap < > ();
+
+    public static final Timer PARSE = timer("parse", 1);
+    public static final Timer TOKENIZE = timer("tokenize", SAMPLE);
+    public static final Timer FILTER = timer("filter", SAMPLE);
+    public static final Timer SCORE = timer("score", SAMPLE);
+    public static final Timer PREDICT = timer("predict", SAMPLE);
+    public static final Timer VECTORIZE = timer("vectorize", 1);
+    public static final Timer FIT = timer("fit", 1);
+    public static final Timer MODEL_LOAD = timer("model.load", 1);
+    public static final Timer MODEL_SAVE = timer("model.save", 1);
+
+    private Metrics() {}
+
+    /**
+     * Management interface of a timer, times in microseconds.
+     */
+    public interface TimerMBean {
+        long getCount();
+        double getMeanMicros();
+        double getP50Micros();
+        double getP99Micros();
+        double getP999Micros();
+        double getMaxMicros();
+        void reset();
+    }
+
+    /**
+     * The calls and latencies of one stage.
+     */
+    public static final class Timer implements TimerMBean {
+        private final String name;
+        private final int sampleMask;
+        private final LongAdder calls = new LongAdder();
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        private Timer(String name, int sample) {
+            this.name = name;
+            this.sampleMask = sample - 1;
+        }
+
+        /**
+         * @return the start time of a call, or 0 if it is not timed
+         */
+        public long start() {
+            if (!ENABLED || (sampleMask != 0 && (ThreadLocalRandom.current().nextInt() & sampleMask) != 0)) {
+                return 0;
+            }
+            return System.nanoTime();
+        }
+
+        /**
+         * count a call, and its time if start() timed it.
+         * @param start what start() returned
+         */
+        public void stop(long start) {
+            if (ENABLED) {
+                calls.increment();
+                if (start != 0) {
+                    histogram.record(System.nanoTime() - start);
+                }
+            }
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public LatencyHistogram histogram() {
+            return histogram;
+        }
+
+        @Override
+        public long getCount() {
+            return calls.sum();
+        }
+
+        @Override
+        public double getMeanMicros() {
+            return histogram.mean() / 1e3;
+        }
+
+        @Override
+        public double getP50Micros() {
+            return histogram.percentile(50) / 1e3;
+        }
+
+        @Override
+        public double getP99Micros() {
+            return histogram.percentile(99) / 1e3;
+        }
+
+        @Override
+        public double getP999Micros() {
+            return histogram.percentile(99.9) / 1e3;
+        }
+
+        @Override
+        public double getMaxMicros() {
+            return histogram.max() / 1e3;
+        }
+
+        @Override
+        public void reset() {
+            calls.reset();
+            histogram.reset();
+        }
+    }
+
+    /**
+     * find or create the timer of a stage; new timers are registered with the platform MBean server.
+     * @param name the stage
+     * @param sample time one in this many calls, rounded down to a power of two; 1 times every call
+     * @return the timer
+     */
+    public static Timer timer(String name, int sample) {
+        Timer timer = TIMERS.get(name);
+        if (timer != null) {
+            return timer;
+        }
+        // not computeIfAbsent(), which may also register a timer that loses the race
+        Timer created = new Timer(name, Integer.highestOneBit(Math.max(1, sample)));
+        timer = TIMERS.putIfAbsent(name, created);
+        if (timer != null) {
+            return timer;
+        }
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(created,
+                    new ObjectName("sms:type=Timer,name=" + name));
+            } catch (Exception e) {
+                LOGGER.warning(e.getMessage());
+            }
+        }
+        return created;
+    }
+
+    /**
+     * forget the calls of the stages run once per message, tokenize, filter, score and predict,
+     * for instance after warming up.
+     */
+    public static void resetMessageStages() {
+        TOKENIZE.reset();
+        FILTER.reset();
+        SCORE.reset();
+        PREDICT.reset();
+    }
+
+    /**
+     * @return all timers, by name
+     */
+    public static Collection < Timer > timers() {
+        return Collections.unmodifiableCollection(TIMERS.values());
+    }
+
+    /**
+     * @return one line per stage that has been called, with its number of calls, of timed calls and
+     *         the latencies of the timed ones in microseconds
+     */
+    public static String dump() {
+        StringBuilder text = new StringBuilder(String.format("%-12s %10s %10s %10s %10s %10s %10s %10s%n",
+            "stage", "count", "timed", "mean us", "p50 us", "p99 us", "p99.9 us", "max us"));
+        for (Timer timer: TIMERS.values()) {
+            if (timer.getCount() > 0) {
+                text.append(String.format("%-12s %10d %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n", timer.name(),
+                    timer.getCount(), timer.histogram().count(), timer.getMeanMicros(), timer.getP50Micros(), timer.getP99Micros(),
+                    timer.getP999Micros(), timer.getMaxMicros()));
+            }
+        }
+        return text.toString();
+    }
+}
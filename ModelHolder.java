@@ -0,0 +1,204 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+
+/**
+ * Serves predictions from a model file and switches to a new model when the file changes,
+ * without stopping prediction traffic.
+ *
+ * A background thread polls the file. Once a change has stayed the same for one poll, it loads
+ * the new model into a fresh WekaClassifier, compiles it into a CompiledModel, which unlike the
+ * classifier can score from many threads at once, runs the warm-up messages through it and, if
+ * none of them fails, publishes both with a single reference swap. A prediction reads the
+ * reference once, so calls in flight finish on the model they started with and new calls go to
+ * the new one; nothing waits on the reload. A file that fails to load or warm up is logged and
+ * the current model keeps serving; one that failed to load is tried again at every poll, in
+ * case the failure was transient. Polling, rather than a WatchService, also sees files that are
+ * renamed over the model, as saveModel() does, and works on network file systems.
+ */
+public class ModelHolder implements Closeable {
+
+    private static Logger LOGGER = Logger.getLogger("ModelHolder");
+
+    private final Path file;
+    private final List < String > warmupTexts;
+    private final AtomicReference < Model > current = new AtomicReference < > ();
+    private final AtomicLong version = new AtomicLong();
+    private final ScheduledExecutorService poller;
+
+    // the file as last loaded, and as seen by the previous poll
+    private FileState loaded;
+    private FileState seen;
+
+    /**
+     * One loaded model: the classifier and its thread-safe compiled form.
+     */
+    private static final class Model {
+        final WekaClassifier classifier;
+        final CompiledModel scorer;
+
+        Model(WekaClassifier classifier, CompiledModel scorer) {
+            this.classifier = classifier;
+            this.scorer = scorer;
+        }
+    }
+
+    /**
+     * What identifies one version of the file.
+     */
+    private static final class FileState {
+        final long lastModified;
+        final long size;
+        final Object fileKey;
+
+        FileState(BasicFileAttributes attributes) {
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+            this.size = attributes.size();
+            this.fileKey = attributes.fileKey();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof FileState)) {
+                return false;
+            }
+            FileState state = (FileState) other;
+            return lastModified == state.lastModified && size == state.size && Objects.equals(fileKey, state.fileKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(lastModified, size, fileKey);
+        }
+    }
+
+    /**
+     * load a model file and start watching it.
+     * @param fileName The name of the model file.
+     * @param warmupTexts messages every new model classifies before it is swapped in
+     * @param pollMillis how often the file is checked for changes
+     */
+    public ModelHolder(String fileName, List < String > warmupTexts, long pollMillis) throws IOException {
+        this.file = Paths.get(fileName);
+        this.warmupTexts = new ArrayList < > (warmupTexts);
+        if (!reload()) {
+            throw new IOException("cannot load model " + fileName);
+        }
+        poller = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "model-reloader");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        poller.scheduleWithFixedDelay(this::poll, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * check the file, and reload it once a change has settled.
+     */
+    private synchronized void poll() {
+        try {
+            FileState state = new FileState(Files.readAttributes(file, BasicFileAttributes.class));
+            if (state.equals(loaded)) {
+                seen = state;
+                return;
+            }
+            // a writer that updates the file in place may not be done yet
+            if (state.equals(seen)) {
+                reload();
+            }
+            seen = state;
+        } catch (IOException e) {
+            // the file is being replaced, or gone; keep the current model
+            seen = null;
+        } catch (Throwable e) {
+            // thrown out of a scheduled task, it would cancel all later polls
+            LOGGER.warning("model reload failed: " + e);
+        }
+    }
+
+    /**
+     * load, warm up and swap in the model file now, on the calling thread.
+     * @return true if the new model is in use, false if the current one was kept
+     */
+    public synchronized boolean reload() throws IOException {
+        FileState state = new FileState(Files.readAttributes(file, BasicFileAttributes.class));
+        WekaClassifier next = new WekaClassifier();
+        if (!next.loadModel(file.toString())) {
+            // not marked as loaded, so the next poll tries again
+            return false;
+        }
+        CompiledModel scorer = next.compile();
+        if (scorer == null) {
+            loaded = state;
+            return false;
+        }
+        try {
+            for (String text: warmupTexts) {
+                scorer.classify(text);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warning("model " + file + " failed to warm up, keeping the current one: " + e);
+            loaded = state;
+            return false;
+        }
+        current.set(new Model(next, scorer));
+        loaded = state;
+        LOGGER.info("Model " + file + " in use, version " + version.incrementAndGet());
+        return true;
+    }
+
+    /**
+     * @return the classifier in use, for single-threaded work such as evaluate(); callers that
+     *         make several calls should keep this reference so that all of them see the same model
+     */
+    public WekaClassifier get() {
+        return current.get().classifier;
+    }
+
+    /**
+     * @return the compiled form of the model in use, safe to share between threads
+     */
+    public CompiledModel scorer() {
+        return current.get().scorer;
+    }
+
+    /**
+     * classify a message into spam or ham with the model in use, from any thread.
+     * @param text message to be classified.
+     * @return a class label (spam or ham)
+     */
+    public String predict(String text) {
+        return current.get().scorer.predict(text);
+    }
+
+    /**
+     * @return the number of models swapped in, the first load included
+     */
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * stop watching the file; the current model keeps serving.
+     */
+    @Override
+    public void close() {
+        poller.shutdownNow();
+    }
+}
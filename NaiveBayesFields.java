@@ -0,0 +1,56 @@
+import java.lang.reflect.Field;
+
+import weka.classifiers.bayes.NaiveBayesMultinomial;
+
+import weka.filters.unsupervised.attribute.StringToWordVector;
+
+
+/**
+ * Access to the tables of a NaiveBayesMultinomial, which has no accessors or setters for them,
+ * for the classes that read a trained model into their own tables or build one from counts.
+ *
+ * Those tables hold word counts only if the filter's output is plain word counts or presence,
+ * so the same classes check the filter with checkWordCounts().
+ */
+public final class NaiveBayesFields {
+
+    private NaiveBayesFields() {}
+
+    /**
+     * read a protected field of a NaiveBayesMultinomial.
+     * @param declaringClass NaiveBayesMultinomial, or NaiveBayesMultinomialUpdateable for its own fields
+     * @param name the name of the field, e.g. m_probOfWordGivenClass
+     * @return the value of the field
+     */
+    public static Object read(Class < ? > declaringClass, NaiveBayesMultinomial nb, String name)
+    throws ReflectiveOperationException {
+        Field field = declaringClass.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(nb);
+    }
+
+    /**
+     * write a protected field of a NaiveBayesMultinomial.
+     * @param declaringClass NaiveBayesMultinomial, or NaiveBayesMultinomialUpdateable for its own fields
+     * @param name the name of the field, e.g. m_probOfWordGivenClass
+     * @param value the new value of the field
+     */
+    public static void write(Class < ? > declaringClass, NaiveBayesMultinomial nb, String name, Object value)
+    throws ReflectiveOperationException {
+        Field field = declaringClass.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(nb, value);
+    }
+
+    /**
+     * check that a filter outputs plain word counts or presence: no TF or IDF transform and no
+     * length normalization, which would need document frequencies or lengths.
+     * @param filter the StringToWordVector in front of the model
+     */
+    public static void checkWordCounts(StringToWordVector filter) {
+        if (filter.getTFTransform() || filter.getIDFTransform()
+            || filter.getNormalizeDocLength().getSelectedTag().getID() != StringToWordVector.FILTER_NONE) {
+            throw new IllegalArgumentException("TF/IDF transforms and length normalization are not supported");
+        }
+    }
+}
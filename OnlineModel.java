@@ -0,0 +1,236 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import weka.classifiers.bayes.NaiveBayesMultinomial;
+import weka.classifiers.bayes.NaiveBayesMultinomialUpdateable;
+import weka.classifiers.meta.FilteredClassifier;
+
+import weka.core.Instances;
+import weka.core.Utils;
+
+import weka.filters.unsupervised.attribute.StringToWordVector;
+
+
+/**
+ * A multinomial NaiveBayes model that keeps learning from labeled messages while it serves
+ * predictions.
+ *
+ * The per-class word counts live in immutable snapshots. A prediction reads the current
+ * snapshot once and scores against it only, so it always sees one consistent model and never
+ * waits. An update copies the pages of the count table it touches, together with the small
+ * per-class totals, and publishes the new snapshot with a compare-and-set, retrying if another
+ * update got in first. Readers never lock and writers never block them; untouched pages are
+ * shared between snapshots, so an update costs the pages its words fall in, not the table.
+ *
+ * The vocabulary is the one of the trained filter, unknown words are ignored. Scoring follows
+ * NaiveBayesMultinomialUpdateable.distributionForInstance(), so before any update the
+ * predictions are the same as the classifier it was created from.
+ */
+public class OnlineModel {
+
+    // words per page of the count table
+    private static final int PAGE_BITS = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    private final WordCounter counter;
+    private final String[] labels;
+
+    private final AtomicReference < Snapshot > current;
+
+    /**
+     * One version of the model, never changed once published.
+     */
+    private static final class Snapshot {
+        // word counts per class, page p holds words [p * PAGE_SIZE, (p + 1) * PAGE_SIZE) as [word * numClasses + class]
+        final double[][] pages;
+
+        // documents per class, plus one
+        final double[] docsPerClass;
+
+        // words per class, plus the vocabulary size
+        final double[] wordsPerClass;
+
+        // number of updates applied since the model was created
+        final long version;
+
+        Snapshot(double[][] pages, double[] docsPerClass, double[] wordsPerClass, long version) {
+            this.pages = pages;
+            this.docsPerClass = docsPerClass;
+            this.wordsPerClass = wordsPerClass;
+            this.version = version;
+        }
+    }
+
+    private OnlineModel(WordCounter counter, String[] labels, Snapshot initial) {
+        this.counter = counter;
+        this.labels = labels;
+        this.current = new AtomicReference < > (initial);
+    }
+
+    /**
+     * start from the counts of a trained classifier.
+     * @param classifier a FilteredClassifier trained with StringToWordVector and NaiveBayesMultinomialUpdateable
+     * @return the online model
+     */
+    public static OnlineModel of(FilteredClassifier classifier) throws Exception {
+        if (!(classifier.getFilter() instanceof StringToWordVector)) {
+            throw new IllegalArgumentException("filter must be a StringToWordVector");
+        }
+        if (!(classifier.getClassifier() instanceof NaiveBayesMultinomialUpdateable)) {
+            throw new IllegalArgumentException("classifier must be a NaiveBayesMultinomialUpdateable");
+        }
+
+        StringToWordVector filter = (StringToWordVector) classifier.getFilter();
+        // update() adds raw word counts to the tables
+        NaiveBayesFields.checkWordCounts(filter);
+        NaiveBayesMultinomialUpdateable nb = (NaiveBayesMultinomialUpdateable) classifier.getClassifier();
+        double[][] counts = (double[][]) NaiveBayesFields.read(NaiveBayesMultinomial.class, nb, "m_probOfWordGivenClass");
+        double[] docsPerClass = ((double[]) NaiveBayesFields.read(NaiveBayesMultinomial.class, nb, "m_probOfClass")).clone();
+        double[] wordsPerClass = ((double[]) NaiveBayesFields.read(NaiveBayesMultinomialUpdateable.class, nb, "m_wordsPerClass")).clone();
+
+        Instances header = filter.getOutputFormat();
+        int numClasses = header.numClasses();
+        WordCounter counter = WordCounter.of(filter);
+
+        // copy the counts of the word attributes, in attribute order
+        int numWords = counter.numWords();
+        double[][] pages = new double[(numWords + PAGE_SIZE - 1) >>> PAGE_BITS][];
+        for (int p = 0; p < pages.length; p++) {
+            pages[p] = new double[Math.min(PAGE_SIZE, numWords - (p << PAGE_BITS)) * numClasses];
+        }
+        int word = 0;
+        for (int i = 0; i < header.numAttributes(); i++) {
+            if (i == header.classIndex()) {
+                continue;
+            }
+            double[] page = pages[word >>> PAGE_BITS];
+            for (int c = 0; c < numClasses; c++) {
+                page[(word & (PAGE_SIZE - 1)) * numClasses + c] = counts[c][i];
+            }
+            word++;
+        }
+
+        String[] labels = new String[numClasses];
+        for (int c = 0; c < numClasses; c++) {
+            labels[c] = header.classAttribute().value(c);
+        }
+        return new OnlineModel(counter, labels, new Snapshot(pages, docsPerClass, wordsPerClass, 0));
+    }
+
+    /**
+     * classify a message into spam or ham.
+     * @param text message to be classified.
+     * @return a class label (spam or ham)
+     */
+    public String predict(String text) {
+        return labels[Utils.maxIndex(distribution(text))];
+    }
+
+    /**
+     * estimate class membership probabilities of a message against the current snapshot.
+     * @param text message to be classified.
+     * @return class distribution, indexed like labels()
+     */
+    public double[] distribution(String text) {
+        Snapshot snapshot = current.get();
+        int numClasses = labels.length;
+
+        double[] scores = new double[numClasses];
+        WordCounter.Counts counts = counter.count(text);
+        for (int c = 0; c < numClasses; c++) {
+            scores[c] += Math.log(snapshot.docsPerClass[c]);
+            int numWords = 0;
+            for (int i = 0; i < counts.size(); i++) {
+                int word = counts.word(i);
+                double freq = counts.value(i);
+                numWords += freq;
+                double count = snapshot.pages[word >>> PAGE_BITS][(word & (PAGE_SIZE - 1)) * numClasses + c];
+                scores[c] += freq * Math.log(count);
+            }
+            scores[c] -= numWords * Math.log(snapshot.wordsPerClass[c]);
+        }
+
+        double max = scores[Utils.maxIndex(scores)];
+        double[] distribution = new double[numClasses];
+        for (int c = 0; c < numClasses; c++) {
+            distribution[c] = Math.exp(scores[c] - max);
+        }
+        Utils.normalize(distribution);
+        return distribution;
+    }
+
+    /**
+     * learn from one labeled message.
+     * @param text the message.
+     * @param label its class label (spam or ham).
+     */
+    public void update(String text, String label) {
+        update(Arrays.asList(text), Arrays.asList(label));
+    }
+
+    /**
+     * learn from labeled messages, published together as one new snapshot.
+     * @param texts the messages.
+     * @param labels their class labels, in the same order.
+     */
+    public void update(List < String > texts, List < String > labels) {
+        int[] classes = new int[labels.size()];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = Arrays.asList(this.labels).indexOf(labels.get(i));
+            if (classes[i] < 0) {
+                throw new IllegalArgumentException("unknown label: " + labels.get(i));
+            }
+        }
+
+        while (true) {
+            Snapshot base = current.get();
+            Snapshot next = apply(base, texts, classes);
+            if (current.compareAndSet(base, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * build the snapshot that follows base, copying only the pages the messages touch.
+     */
+    private Snapshot apply(Snapshot base, List < String > texts, int[] classes) {
+        int numClasses = labels.length;
+        double[][] pages = base.pages.clone();
+        boolean[] copied = new boolean[pages.length];
+        double[] docsPerClass = base.docsPerClass.clone();
+        double[] wordsPerClass = base.wordsPerClass.clone();
+
+        for (int m = 0; m < texts.size(); m++) {
+            int c = classes[m];
+            docsPerClass[c]++;
+            WordCounter.Counts counts = counter.count(texts.get(m));
+            for (int i = 0; i < counts.size(); i++) {
+                int word = counts.word(i);
+                int p = word >>> PAGE_BITS;
+                if (!copied[p]) {
+                    pages[p] = pages[p].clone();
+                    copied[p] = true;
+                }
+                pages[p][(word & (PAGE_SIZE - 1)) * numClasses + c] += counts.value(i);
+                wordsPerClass[c] += counts.value(i);
+            }
+        }
+        return new Snapshot(pages, docsPerClass, wordsPerClass, base.version + texts.size());
+    }
+
+    /**
+     * @return the number of messages learned since the model was created
+     */
+    public long version() {
+        return current.get().version;
+    }
+
+    /**
+     * @return the class labels, indexed like the distributions
+     */
+    public String[] labels() {
+        return labels.clone();
+    }
+}
@@ -0,0 +1,174 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+
+/**
+ * Parses a labeled text file on several cores.
+ *
+ * The file is cut into byte ranges that end on line breaks, each range is parsed by a
+ * RawDatasetReader on a fork-join worker, and the parsed chunks come back in file order.
+ */
+public class ParallelDatasetLoader {
+
+    // ranges per thread, so that a slow range does not leave the other threads idle
+    private static final int RANGES_PER_THREAD = 4;
+
+    // ranges smaller than this are not worth a task
+    private static final long MIN_RANGE_SIZE = 1024 * 1024;
+
+    private final int threads;
+
+    /**
+     * The rows parsed from one byte range.
+     */
+    public static final class Chunk {
+        private byte[] labels = new byte[1024];
+        private String[] texts = new String[1024];
+        private int size;
+
+        void add(int label, String text) {
+            if (size == texts.length) {
+                labels = Arrays.copyOf(labels, size * 2);
+                texts = Arrays.copyOf(texts, size * 2);
+            }
+            labels[size] = (byte) label;
+            texts[size] = text;
+            size++;
+        }
+
+        /**
+         * @return number of rows
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return label index of a row
+         */
+        public int label(int row) {
+            return labels[row];
+        }
+
+        /**
+         * @return text of a row
+         */
+        public String text(int row) {
+            return texts[row];
+        }
+    }
+
+    /**
+     * @param threads number of threads parsing the file
+     */
+    public ParallelDatasetLoader(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * parse a file.
+     * @param fileName The name of the file.
+     * @param labels the valid labels, at most 127, rows with another label are skipped
+     * @return the parsed rows, one chunk per range in file order
+     */
+    public List < Chunk > parse(String fileName, List < String > labels) throws IOException {
+        long[] bounds = split(fileName, threads == 1 ? 1 : threads * RANGES_PER_THREAD);
+
+        List < Callable < Chunk >> tasks = new ArrayList < > ();
+        for (int i = 0; i + 1 < bounds.length; i++) {
+            long start = bounds[i];
+            long end = bounds[i + 1];
+            tasks.add(() -> parseRange(fileName, labels, start, end));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List < Chunk > chunks = new ArrayList < > (tasks.size());
+            for (Future < Chunk > future: pool.invokeAll(tasks)) {
+                chunks.add(future.get());
+            }
+            return chunks;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while parsing " + fileName, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static Chunk parseRange(String fileName, List < String > labels, long start, long end) {
+        Chunk chunk = new Chunk();
+        try (RawDatasetReader reader = new RawDatasetReader(fileName, labels, start, end)) {
+            while (reader.next()) {
+                chunk.add(reader.label(), reader.text());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return chunk;
+    }
+
+    /**
+     * cut a file into about the given number of ranges, each ending just after a line break.
+     * @return the range boundaries, from 0 to the file size
+     */
+    static long[] split(String fileName, int parts) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            long size = channel.size();
+            parts = (int) Math.max(1, Math.min(parts, size / MIN_RANGE_SIZE));
+
+            List < Long > bounds = new ArrayList < > ();
+            bounds.add(0L);
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            for (int i = 1; i < parts; i++) {
+                long bound = nextLineStart(channel, buffer, Math.max(size * i / parts, bounds.get(bounds.size() - 1)));
+                if (bound < size && bound > bounds.get(bounds.size() - 1)) {
+                    bounds.add(bound);
+                }
+            }
+            bounds.add(size);
+
+            long[] result = new long[bounds.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = bounds.get(i);
+            }
+            return result;
+        }
+    }
+
+    // position just after the first line break at or after from, or the file size
+    private static long nextLineStart(FileChannel channel, ByteBuffer buffer, long from) throws IOException {
+        long position = from;
+        while (true) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,459 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import weka.classifiers.bayes.NaiveBayesMultinomial;
+
+import weka.core.Instances;
+
+import weka.filters.unsupervised.attribute.StringToWordVector;
+
+
+/**
+ * Word counts of one part of the training data, which can be produced on separate machines
+ * and merged into one model.
+ *
+ * A partial file holds what StringToWordVector's dictionary builder counts: for every word,
+ * per class, its number of occurrences and the number of messages it appears in, plus the
+ * number of messages per class. Words are stored in sorted order, so any number of partials
+ * merge in a single streaming pass that keeps one word per file in memory.
+ * Merging runs two such passes: the first finds the per-class thresholds of wordsToKeep and
+ * minTermFreq, the second collects the words that pass them with their counts. Only the kept
+ * words are held in memory, so memory depends on wordsToKeep, not on the data.
+ *
+ * File layout, big-endian (DataOutputStream):
+ *   int magic, int version, string settings, int numClasses, numClasses x string label,
+ *   numClasses x long messages, long numWords,
+ *   numWords x (string word, numClasses x (int occurrences, int messages)), words in String order.
+ * A string is an int length and that many bytes of UTF-8.
+ */
+public class PartialCounts {
+
+    private static final int MAGIC = 0x534d5350; // "SMSP"
+    private static final int VERSION = 2;
+
+    /**
+     * write a partial count file.
+     * @param fileName The name of the file.
+     * @param settings description of the labels and filter options the counts were made with
+     * @param labels the class labels
+     * @param docsPerClass number of messages per class
+     * @param dictionaries word -> {occurrences, messages} for each class, as DictionaryBuilder keeps them
+     */
+    public static void write(String fileName, String settings, List < String > labels, long[] docsPerClass,
+        Map < String, int[] > [] dictionaries) throws IOException {
+        if (dictionaries.length != labels.size()) {
+            throw new IllegalArgumentException("need one dictionary per class");
+        }
+        TreeMap < String, int[] > words = new TreeMap < > ();
+        for (int c = 0; c < dictionaries.length; c++) {
+            for (Map.Entry < String, int[] > entry: dictionaries[c].entrySet()) {
+                int[] counts = words.computeIfAbsent(entry.getKey(), word -> new int[2 * labels.size()]);
+                counts[2 * c] = entry.getValue()[0];
+                counts[2 * c + 1] = entry.getValue()[1];
+            }
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, settings);
+            out.writeInt(labels.size());
+            for (String label: labels) {
+                writeString(out, label);
+            }
+            for (long docs: docsPerClass) {
+                out.writeLong(docs);
+            }
+            out.writeLong(words.size());
+            for (Map.Entry < String, int[] > entry: words.entrySet()) {
+                writeString(out, entry.getKey());
+                for (int count: entry.getValue()) {
+                    out.writeInt(count);
+                }
+            }
+        }
+    }
+
+    // unlike writeUTF(), not limited to 64 KB
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("corrupt partial count file");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a partial count file one word at a time.
+     */
+    public static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private final String settings;
+        private final List < String > labels;
+        private final long[] docsPerClass;
+        private long remaining;
+
+        private String word;
+        private final int[] counts;
+
+        /**
+         * @param fileName The name of the file.
+         */
+        public Reader(String fileName) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException(fileName + " is not a partial count file");
+                }
+                int version = in.readInt();
+                if (version != VERSION) {
+                    throw new IOException("unsupported partial count file version " + version);
+                }
+                settings = readString(in);
+                labels = new ArrayList < > ();
+                int numClasses = in.readInt();
+                for (int c = 0; c < numClasses; c++) {
+                    labels.add(readString(in));
+                }
+                docsPerClass = new long[numClasses];
+                for (int c = 0; c < numClasses; c++) {
+                    docsPerClass[c] = in.readLong();
+                }
+                remaining = in.readLong();
+                counts = new int[2 * numClasses];
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        /**
+         * move to the next word.
+         * @return false when there are no more words
+         */
+        public boolean next() throws IOException {
+            if (remaining == 0) {
+                word = null;
+                return false;
+            }
+            try {
+                word = readString(in);
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] = in.readInt();
+                }
+            } catch (EOFException e) {
+                throw new IOException("truncated partial count file", e);
+            }
+            remaining--;
+            return true;
+        }
+
+        /**
+         * @return the current word
+         */
+        public String word() {
+            return word;
+        }
+
+        /**
+         * @return occurrences of the current word in messages of a class
+         */
+        public int occurrences(int classIndex) {
+            return counts[2 * classIndex];
+        }
+
+        /**
+         * @return number of messages of a class the current word appears in
+         */
+        public int messages(int classIndex) {
+            return counts[2 * classIndex + 1];
+        }
+
+        /**
+         * @return the settings the counts were made with
+         */
+        public String settings() {
+            return settings;
+        }
+
+        /**
+         * @return the class labels
+         */
+        public List < String > labels() {
+            return labels;
+        }
+
+        /**
+         * @return number of messages per class
+         */
+        public long[] docsPerClass() {
+            return docsPerClass.clone();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Merges partial count files word by word, adding up the counts of equal words.
+     */
+    public static final class Merger implements Closeable {
+        private final List < Reader > readers = new ArrayList < > ();
+        private final PriorityQueue < Reader > queue = new PriorityQueue < > ((a, b) -> a.word().compareTo(b.word()));
+        private final int numClasses;
+        private final long[] docsPerClass;
+
+        private String word;
+        private final long[] occurrences;
+        private final long[] messages;
+
+        /**
+         * open partial count files made with the same settings.
+         * @param fileNames The names of the files.
+         * @param settings the settings every file must have been made with
+         */
+        public Merger(List < String > fileNames, String settings) throws IOException {
+            try {
+                for (String fileName: fileNames) {
+                    Reader reader = new Reader(fileName);
+                    readers.add(reader);
+                    if (!reader.settings().equals(settings)) {
+                        throw new IOException(fileName + " was counted with other settings: " + reader.settings());
+                    }
+                }
+                if (readers.isEmpty()) {
+                    throw new IOException("no partial count files");
+                }
+                numClasses = readers.get(0).labels().size();
+                docsPerClass = new long[numClasses];
+                for (Reader reader: readers) {
+                    for (int c = 0; c < numClasses; c++) {
+                        docsPerClass[c] += reader.docsPerClass()[c];
+                    }
+                    if (reader.next()) {
+                        queue.add(reader);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            occurrences = new long[numClasses];
+            messages = new long[numClasses];
+        }
+
+        /**
+         * move to the next word of the merged counts.
+         * @return false when there are no more words
+         */
+        public boolean next() throws IOException {
+            if (queue.isEmpty()) {
+                word = null;
+                return false;
+            }
+            word = queue.peek().word();
+            Arrays.fill(occurrences, 0);
+            Arrays.fill(messages, 0);
+            while (!queue.isEmpty() && queue.peek().word().equals(word)) {
+                Reader reader = queue.poll();
+                for (int c = 0; c < numClasses; c++) {
+                    occurrences[c] += reader.occurrences(c);
+                    messages[c] += reader.messages(c);
+                }
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return the current word
+         */
+        public String word() {
+            return word;
+        }
+
+        /**
+         * @return total occurrences of the current word in messages of a class
+         */
+        public long occurrences(int classIndex) {
+            return occurrences[classIndex];
+        }
+
+        /**
+         * @return total number of messages of a class the current word appears in
+         */
+        public long messages(int classIndex) {
+            return messages[classIndex];
+        }
+
+        /**
+         * @return total number of messages per class
+         */
+        public long[] docsPerClass() {
+            return docsPerClass.clone();
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Reader reader: readers) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * check that a filter's vectors can be rebuilt from partial counts: per-class dictionaries,
+     * no pruning while counting, and plain word counts or presence as the attribute values.
+     * @param filter the StringToWordVector the counts are made with
+     */
+    public static void checkFilter(StringToWordVector filter) {
+        if (filter.getDoNotOperateOnPerClassBasis() || filter.getPeriodicPruning() > 0) {
+            throw new IllegalArgumentException("partial counts need per-class dictionaries without periodic pruning");
+        }
+        NaiveBayesFields.checkWordCounts(filter);
+    }
+
+    /**
+     * train a classifier from partial count files, as if its filter and NaiveBayes model had
+     * been trained on all the messages at once.
+     * @param fileNames The names of the partial count files.
+     * @param settings the settings every file must have been made with
+     * @param classifier configured with an untrained StringToWordVector and a NaiveBayesMultinomial(Updateable)
+     * @param header the format of the raw data, the label first and the text second
+     */
+    public static void train(List < String > fileNames, String settings, VectorizedFilteredClassifier classifier,
+        Instances header) throws Exception {
+        if (!(classifier.getFilter() instanceof StringToWordVector)) {
+            throw new IllegalArgumentException("filter must be a StringToWordVector");
+        }
+        if (!(classifier.getClassifier() instanceof NaiveBayesMultinomial)) {
+            throw new IllegalArgumentException("classifier must be a NaiveBayesMultinomial");
+        }
+        StringToWordVector filter = (StringToWordVector) classifier.getFilter();
+        checkFilter(filter);
+        int numClasses = header.numClasses();
+
+        // pass 1: the occurrence threshold of each class, from its wordsToKeep most frequent words
+        List < PriorityQueue < Long >> top = new ArrayList < > ();
+        long[] numWords = new long[numClasses];
+        for (int c = 0; c < numClasses; c++) {
+            top.add(new PriorityQueue < > ());
+        }
+        try (Merger merger = new Merger(fileNames, settings)) {
+            while (merger.next()) {
+                for (int c = 0; c < numClasses; c++) {
+                    if (merger.occurrences(c) > 0) {
+                        numWords[c]++;
+                        top.get(c).add(merger.occurrences(c));
+                        if (top.get(c).size() > filter.getWordsToKeep()) {
+                            top.get(c).poll();
+                        }
+                    }
+                }
+            }
+        }
+        long[] threshold = new long[numClasses];
+        for (int c = 0; c < numClasses; c++) {
+            threshold[c] = filter.getMinTermFreq();
+            if (numWords[c] >= filter.getWordsToKeep() && !top.get(c).isEmpty()) {
+                threshold[c] = Math.max(threshold[c], top.get(c).peek());
+            }
+        }
+
+        // pass 2: the kept words, their document frequencies and their counts per class. Like
+        // finalizeDictionary(), a word goes after the words of the first class that keeps it, and
+        // its document frequency adds up the classes that keep it
+        StringBuilder[] dictionary = new StringBuilder[numClasses];
+        for (int c = 0; c < numClasses; c++) {
+            dictionary[c] = new StringBuilder();
+        }
+        Map < String, double[] > kept = new HashMap < > ();
+        long[] docsPerClass;
+        try (Merger merger = new Merger(fileNames, settings)) {
+            docsPerClass = merger.docsPerClass();
+            while (merger.next()) {
+                int first = -1;
+                long messages = 0;
+                for (int c = 0; c < numClasses; c++) {
+                    if (merger.occurrences(c) > 0 && merger.occurrences(c) >= threshold[c]) {
+                        first = first < 0 ? c : first;
+                        messages += merger.messages(c);
+                    }
+                }
+                if (first >= 0) {
+                    dictionary[first].append(merger.word()).append(',').append(messages).append('\n');
+                    double[] counts = new double[numClasses];
+                    for (int c = 0; c < numClasses; c++) {
+                        counts[c] = filter.getOutputWordCounts() ? merger.occurrences(c) : merger.messages(c);
+                    }
+                    kept.put(merger.word(), counts);
+                }
+            }
+        }
+
+        // a filter whose dictionary is the merged one, as loadDictionary() leaves it
+        filter.setInputFormat(header);
+        StringBuilder lines = new StringBuilder();
+        for (StringBuilder classLines: dictionary) {
+            lines.append(classLines);
+        }
+        ShardedTrainer.dictionaryBuilder(filter).loadDictionary(new StringReader(lines.toString()));
+        filter.batchFinished();
+
+        Instances output = filter.getOutputFormat();
+        String prefix = filter.getAttributeNamePrefix();
+        double[][] counts = new double[numClasses + 1][];
+        for (int c = 0; c < numClasses; c++) {
+            counts[c] = new double[output.numAttributes() - 1];
+        }
+        counts[numClasses] = new double[numClasses];
+        for (int c = 0; c < numClasses; c++) {
+            counts[numClasses][c] = docsPerClass[c];
+        }
+        int word = 0;
+        for (int i = 0; i < output.numAttributes(); i++) {
+            if (i == output.classIndex()) {
+                continue;
+            }
+            double[] wordCounts = kept.get(output.attribute(i).name().substring(prefix.length()));
+            for (int c = 0; c < numClasses; c++) {
+                counts[c][word] = wordCounts[c];
+            }
+            word++;
+        }
+
+        NaiveBayesMultinomial nb = (NaiveBayesMultinomial) classifier.getClassifier();
+        ShardedTrainer.install(nb, output, counts);
+        classifier.setTrained(filter, nb);
+    }
+}
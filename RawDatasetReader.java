@@ -0,0 +1,233 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.List;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+
+/**
+ * Reads a labeled text file ("label whitespace text" per line) through memory-mapped windows.
+ *
+ * Lines are split with a hand-written byte scanner instead of a regex, and rows are handed
+ * out one at a time through next(), or a chunk at a time through read(), so files of any
+ * size can be read with heap use bounded by the chunk size. Rows follow the rules of
+ * WekaClassifier.loadRawDataset(): the label is everything up to the first whitespace, the
+ * text is everything after the whitespace that follows it, and rows with an empty label or
+ * text are skipped, as are unknown labels.
+ */
+public class RawDatasetReader implements Closeable {
+
+    // size of the mapped window, a window always starts at the beginning of a line
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long end;
+
+    // the mapped window and where it lies in the file
+    private MappedByteBuffer window;
+    private long windowStart;
+    private int windowLimit;
+
+    // offset of the next unread line in the window
+    private int position;
+
+    // labels as bytes, so they can be matched without decoding
+    private final byte[][] labels;
+
+    // the current row: label index and where its text lies in the window
+    private int label;
+    private int textStart;
+    private int textEnd;
+
+    // decoding buffer for the text of one line
+    private byte[] line = new byte[1024];
+
+    /**
+     * open a file for reading.
+     * @param fileName The name of the file.
+     * @param labels the valid labels, rows with another label are skipped
+     */
+    public RawDatasetReader(String fileName, List < String > labels) throws IOException {
+        this(fileName, labels, 0, -1);
+    }
+
+    /**
+     * open a byte range of a file for reading. The range must start at the beginning of a line
+     * and end just after a line break or at the end of the file.
+     * @param fileName The name of the file.
+     * @param labels the valid labels, rows with another label are skipped
+     * @param start first byte of the range
+     * @param end end of the range (exclusive), or -1 for the end of the file
+     */
+    public RawDatasetReader(String fileName, List < String > labels, long start, long end) throws IOException {
+        this.labels = new byte[labels.size()][];
+        for (int i = 0; i < this.labels.length; i++) {
+            this.labels[i] = labels.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        this.end = end < 0 ? channel.size() : Math.min(end, channel.size());
+        map(start, WINDOW_SIZE);
+    }
+
+    /**
+     * move to the next valid row.
+     * @return false once the file is exhausted
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            int lineEnd = nextLineEnd();
+            if (lineEnd < 0) {
+                return false;
+            }
+            int lineStart = position;
+            position = lineEnd < windowLimit ? lineEnd + 1 : lineEnd;
+
+            // readLine() drops the \r of a \r\n line break
+            if (lineEnd > lineStart && window.get(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+
+            // label up to the first whitespace, text after the whitespace run that follows
+            int labelEnd = lineStart;
+            while (labelEnd < lineEnd && !isWhitespace(window.get(labelEnd))) {
+                labelEnd++;
+            }
+            int start = labelEnd;
+            while (start < lineEnd && isWhitespace(window.get(start))) {
+                start++;
+            }
+            if (labelEnd == lineStart || start == lineEnd) {
+                continue;
+            }
+
+            label = matchLabel(lineStart, labelEnd);
+            if (label >= 0) {
+                textStart = start;
+                textEnd = lineEnd;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return index of the label of the current row
+     */
+    public int label() {
+        return label;
+    }
+
+    /**
+     * @return length in bytes of the UTF-8 text of the current row
+     */
+    public int textLength() {
+        return textEnd - textStart;
+    }
+
+    /**
+     * copy the UTF-8 text of the current row.
+     * @param dst receives textLength() bytes
+     * @param offset where to write in dst
+     */
+    public void textBytes(byte[] dst, int offset) {
+        window.get(textStart, dst, offset, textEnd - textStart);
+    }
+
+    /**
+     * @return the text of the current row
+     */
+    public String text() {
+        int length = textEnd - textStart;
+        if (line.length < length) {
+            line = new byte[Math.max(length, 2 * line.length)];
+        }
+        textBytes(line, 0);
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * read up to maxRows valid rows into a dataset whose first attribute is the nominal
+     * label, with the labels given to the constructor, and second attribute is the text.
+     * @param dataset the dataset receiving the rows
+     * @param maxRows maximum number of rows to add
+     * @return number of rows added, 0 once the file is exhausted
+     */
+    public int read(Instances dataset, int maxRows) throws IOException {
+        Attribute textAttribute = dataset.attribute(1);
+        int added = 0;
+        while (added < maxRows && next()) {
+            double[] values = new double[2];
+            values[0] = label;
+            values[1] = textAttribute.addStringValue(text());
+            dataset.add(new DenseInstance(1, values));
+            added++;
+        }
+        return added;
+    }
+
+    /**
+     * find the end of the next line, remapping the window when the line crosses its end.
+     * @return offset in the window of the line break (or of the end of the data), -1 at the end
+     */
+    private int nextLineEnd() throws IOException {
+        while (true) {
+            for (int i = position; i < windowLimit; i++) {
+                if (window.get(i) == '\n') {
+                    return i;
+                }
+            }
+
+            long windowEnd = windowStart + windowLimit;
+            if (windowEnd == end) {
+                // the last line has no line break
+                return position < windowLimit ? windowLimit : -1;
+            }
+
+            // continue from the start of the unfinished line, growing the window for very long lines
+            int size = position == 0 ? (int) Math.min(2L * windowLimit, Integer.MAX_VALUE) : WINDOW_SIZE;
+            map(windowStart + position, size);
+        }
+    }
+
+    private void map(long start, int size) throws IOException {
+        windowStart = start;
+        windowLimit = (int) Math.min(size, end - start);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowLimit);
+        position = 0;
+    }
+
+    private int matchLabel(int start, int end) {
+        for (int i = 0; i < labels.length; i++) {
+            byte[] label = labels[i];
+            if (label.length != end - start) {
+                continue;
+            }
+            int j = 0;
+            while (j < label.length && label[j] == window.get(start + j)) {
+                j++;
+            }
+            if (j == label.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // the characters of the regex class \s
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,442 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+
+/**
+ * An HTTP endpoint that classifies messages, for services that would otherwise embed
+ * WekaClassifier themselves.
+ *
+ * POST /predict with a plain text body answers the label as plain text. With a JSON body,
+ * {"text": "..."} answers {"label": "..."} and {"texts": [...]} answers {"labels": [...]}.
+ * GET /health answers the version of the model in use. Predictions come from a ModelHolder, so
+ * the model file is reloaded when it changes, and go through an AsyncPredictor, which scores the
+ * messages of concurrent requests together in micro-batches. When its queue is full a request is
+ * answered 503 at once; a request with more texts than the queue holds is answered 413. A compiled model scores a message in microseconds, far less than the
+ * HTTP exchange costs, so by default a batch does not wait to fill up: it is made of the requests
+ * that arrived while the previous one was scored, and a lone request is scored at once.
+ *
+ * The JDK server multiplexes all connections on one selector thread and hands a request to the
+ * executor only once it has arrived, so an idle keep-alive connection costs a socket and a few
+ * objects, not a thread. Each request then runs on a thread of its own and blocks until its
+ * batch is scored. On Java 21 and later these are virtual threads, which cost a few hundred
+ * bytes while blocked, so the requests in flight are bounded by the batch queue. Older JVMs get
+ * a fixed pool of platform threads instead, which bounds them too. Unless they are set, this
+ * class raises sun.net.httpserver.maxIdleConnections, beyond which the JDK server closes idle
+ * connections, from 200 to 100000, and turns on sun.net.httpserver.nodelay. Idle connections are
+ * still closed after sun.net.httpserver.idleInterval, 30 seconds by default.
+ *
+ * Usage: java -cp weka.jar:. ScoringServer [--port 8080] [--batch 64] [--wait 0 microseconds]
+ *        where --batch 0 scores on the request threads instead of batching
+ */
+public class ScoringServer implements AutoCloseable {
+
+    private static Logger LOGGER = Logger.getLogger("ScoringServer");
+
+    private static final String MODEL = "models/sms.dat";
+    private static final String TRAIN_DATA = "dataset/train.txt";
+
+    private static final int BACKLOG = 4096;
+    private static final int FALLBACK_THREADS = 256;
+    private static final int MAX_BODY_BYTES = 1 << 20;
+    private static final String TEXT = "text/plain; charset=utf-8";
+    private static final String JSON = "application/json; charset=utf-8";
+
+    static {
+        // read by the JDK server when the first one is created
+        if (System.getProperty("sun.net.httpserver.maxIdleConnections") == null) {
+            System.setProperty("sun.net.httpserver.maxIdleConnections", "100000");
+        }
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final ModelHolder model;
+    private final AsyncPredictor predictor;
+    private final int maxTexts;
+    private final ExecutorService executor;
+    private final HttpServer server;
+
+    /**
+     * start serving.
+     * @param model the model to predict with
+     * @param port the port to listen on, 0 for any free port
+     * @param maxBatchSize the most messages scored together, 0 to score each request on its own thread
+     * @param maxWaitMicros the longest a message waits for its batch to fill up
+     */
+    public ScoringServer(ModelHolder model, int port, int maxBatchSize, long maxWaitMicros) throws IOException {
+        this.model = model;
+        this.predictor = maxBatchSize > 0 ? new AsyncPredictor(this::score, maxBatchSize, maxWaitMicros,
+            64 * maxBatchSize) : null;
+        // more would overflow the batch queue even on an idle server
+        this.maxTexts = maxBatchSize > 0 ? 64 * maxBatchSize : Integer.MAX_VALUE;
+        this.executor = requestExecutor();
+        this.server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+        server.createContext("/predict", this::handlePredict);
+        server.createContext("/health", this::handleHealth);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return an executor that starts a virtual thread per request, or a pool of platform threads
+     *         before Java 21
+     */
+    static ExecutorService requestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOGGER.info("no virtual threads, serving requests on " + FALLBACK_THREADS + " threads");
+            return Executors.newFixedThreadPool(FALLBACK_THREADS, task -> {
+                Thread thread = new Thread(task, "scoring-request");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * label one batch, all of it with the same model.
+     */
+    private List < String > score(List < String > texts) {
+        CompiledModel scorer = model.scorer();
+        List < String > labels = new ArrayList < > (texts.size());
+        for (String text: texts) {
+            labels.add(scorer.predict(text));
+        }
+        return labels;
+    }
+
+    /**
+     * classify messages, waiting for their batches.
+     * @return the labels, in order
+     * @throws ExecutionException caused by a RejectedExecutionException if the server is overloaded
+     */
+    private List < String > predict(List < String > texts) throws ExecutionException, InterruptedException {
+        if (predictor == null) {
+            return score(texts);
+        }
+        List < CompletableFuture < String >> futures = new ArrayList < > (texts.size());
+        for (String text: texts) {
+            futures.add(predictor.predictAsync(text));
+        }
+        List < String > labels = new ArrayList < > (texts.size());
+        for (CompletableFuture < String > future: futures) {
+            labels.add(future.get());
+        }
+        return labels;
+    }
+
+    private void handlePredict(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            send(exchange, 405, TEXT, "use POST\n");
+            return;
+        }
+        byte[] body = exchange.getRequestBody().readNBytes(MAX_BODY_BYTES + 1);
+        if (body.length > MAX_BODY_BYTES) {
+            send(exchange, 413, TEXT, "message too large\n");
+            return;
+        }
+        String text = new String(body, StandardCharsets.UTF_8);
+        String type = exchange.getRequestHeaders().getFirst("Content-Type");
+        try {
+            if (type == null || !type.startsWith("application/json")) {
+                send(exchange, 200, TEXT, predict(Collections.singletonList(text)).get(0) + "\n");
+                return;
+            }
+            Map < String, Object > request = Json.parseObject(text);
+            Object texts = request.get("texts");
+            if (texts instanceof List && ((List < ? > ) texts).size() > maxTexts) {
+                send(exchange, 413, TEXT, "at most " + maxTexts + " texts per request\n");
+            } else if (texts instanceof List) {
+                @SuppressWarnings("unchecked")
+                List < String > labels = predict((List < String > ) texts);
+                send(exchange, 200, JSON, "{\"labels\": " + Json.quote(labels) + "}\n");
+            } else if (request.get("text") instanceof String) {
+                String label = predict(Collections.singletonList((String) request.get("text"))).get(0);
+                send(exchange, 200, JSON, "{\"label\": " + Json.quote(label) + "}\n");
+            } else {
+                send(exchange, 400, TEXT, "expected {\"text\": \"...\"} or {\"texts\": [...]}\n");
+            }
+        } catch (IllegalArgumentException e) {
+            send(exchange, 400, TEXT, e.getMessage() + "\n");
+        } catch (ExecutionException e) {
+            boolean overloaded = e.getCause() instanceof RejectedExecutionException;
+            send(exchange, overloaded ? 503 : 500, TEXT, e.getCause().getMessage() + "\n");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            send(exchange, 503, TEXT, "server is stopping\n");
+        } catch (RuntimeException e) {
+            LOGGER.warning(e.getMessage());
+            send(exchange, 500, TEXT, "prediction failed\n");
+        }
+    }
+
+    private void handleHealth(HttpExchange exchange) throws IOException {
+        send(exchange, 200, TEXT, "ok, model version " + model.version() + "\n");
+    }
+
+    /**
+     * answer a request and end the exchange.
+     */
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * stop accepting connections, give the requests in flight a second to finish, and stop.
+     */
+    @Override
+    public void close() {
+        server.stop(1);
+        executor.shutdown();
+        if (predictor != null) {
+            predictor.close();
+        }
+    }
+
+    /**
+     * The JSON /predict understands: an object whose values are strings or arrays of strings.
+     */
+    static final class Json {
+        private final String text;
+        private int pos;
+
+        private Json(String text) {
+            this.text = text;
+        }
+
+        /**
+         * @return the members of the object, in order
+         * @throws IllegalArgumentException if the text is not such an object
+         */
+        static Map < String, Object > parseObject(String text) {
+            Json json = new Json(text);
+            Map < String, Object > object = json.object();
+            json.skipSpace();
+            if (json.pos != text.length()) {
+                throw json.error("trailing characters");
+            }
+            return object;
+        }
+
+        /**
+         * @return a JSON string literal
+         */
+        static String quote(String value) {
+            StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    quoted.append('\\').append(c);
+                } else if (c < 0x20) {
+                    quoted.append(String.format("\\u%04x", (int) c));
+                } else {
+                    quoted.append(c);
+                }
+            }
+            return quoted.append('"').toString();
+        }
+
+        /**
+         * @return a JSON array of string literals
+         */
+        static String quote(List < String > values) {
+            StringBuilder quoted = new StringBuilder("[");
+            for (int i = 0; i < values.size(); i++) {
+                quoted.append(i > 0 ? ", " : "").append(quote(values.get(i)));
+            }
+            return quoted.append(']').toString();
+        }
+
+        private Map < String, Object > object() {
+            Map < String, Object > object = new LinkedHashMap < > ();
+            skipSpace();
+            expect('{');
+            skipSpace();
+            if (accept('}')) {
+                return object;
+            }
+            do {
+                skipSpace();
+                String key = string();
+                skipSpace();
+                expect(':');
+                skipSpace();
+                object.put(key, peek() == '[' ? array() : string());
+                skipSpace();
+            } while (accept(','));
+            expect('}');
+            return object;
+        }
+
+        private List < String > array() {
+            List < String > array = new ArrayList < > ();
+            expect('[');
+            skipSpace();
+            if (accept(']')) {
+                return array;
+            }
+            do {
+                skipSpace();
+                array.add(string());
+                skipSpace();
+            } while (accept(','));
+            expect(']');
+            return array;
+        }
+
+        private String string() {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            for (char c; (c = next()) != '"';) {
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                char escaped = next();
+                switch (escaped) {
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'u':
+                        if (pos + 4 > text.length()) {
+                            throw error("bad escape");
+                        }
+                        try {
+                            value.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("bad escape");
+                        }
+                        pos += 4;
+                        break;
+                    case '"':
+                    case '\\':
+                    case '/':
+                        value.append(escaped);
+                        break;
+                    default:
+                        throw error("bad escape");
+                }
+            }
+            return value.toString();
+        }
+
+        private void skipSpace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private char peek() {
+            return pos < text.length() ? text.charAt(pos) : 0;
+        }
+
+        private char next() {
+            if (pos >= text.length()) {
+                throw error("unexpected end");
+            }
+            return text.charAt(pos++);
+        }
+
+        private boolean accept(char c) {
+            if (peek() == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!accept(c)) {
+                throw error("expected '" + c + "'");
+            }
+        }
+
+        private IllegalArgumentException error(String problem) {
+            return new IllegalArgumentException("bad JSON at character " + pos + ": " + problem);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = 8080;
+        int batch = 64;
+        long waitMicros = 0;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--batch":
+                    batch = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--wait":
+                    waitMicros = Long.parseLong(args[i + 1]);
+                    break;
+                default:
+                    LOGGER.warning("unknown option: " + args[i]);
+                    return;
+            }
+        }
+
+        WekaClassifier wt = new WekaClassifier();
+        if (!new File(MODEL).exists()) {
+            wt.transform();
+            wt.fit();
+            wt.saveModel(MODEL);
+        }
+        List < String > texts = WarmUp.trainingSample(TRAIN_DATA, wt.labels(), 200);
+        ModelHolder model = new ModelHolder(MODEL, texts, 1000);
+        LOGGER.info(WarmUp.run(model::predict, texts, 5000).toString());
+
+        ScoringServer server = new ScoringServer(model, port, batch, waitMicros);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            model.close();
+        }));
+        LOGGER.info("Listening on port " + server.port() + (batch > 0 ? ", batches of up to " + batch : ""));
+    }
+}
@@ -0,0 +1,229 @@
+import java.lang.reflect.Field;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import weka.classifiers.bayes.NaiveBayesMultinomial;
+import weka.classifiers.bayes.NaiveBayesMultinomialUpdateable;
+
+import weka.core.DictionaryBuilder;
+import weka.core.Instance;
+import weka.core.Instances;
+
+import weka.filters.Filter;
+import weka.filters.unsupervised.attribute.StringToWordVector;
+
+
+/**
+ * Trains a StringToWordVector + multinomial NaiveBayes classifier on several cores.
+ *
+ * The data is cut into one shard per thread and trained in two passes:
+ *   1. each shard feeds its own DictionaryBuilder; the builders are aggregated into the
+ *      filter's, which then picks the words to keep from the total counts, as it would
+ *      after a single pass;
+ *   2. each shard counts the dictionary words per class into its own dense table; the tables
+ *      are added up and installed as the NaiveBayes model.
+ * Counts are whole numbers, so adding them in another order changes nothing: the result is
+ * the model NaiveBayesMultinomial(Updateable).buildClassifier() builds on the same data.
+ */
+public class ShardedTrainer {
+
+    private final int threads;
+
+    /**
+     * @param threads number of shards and threads
+     */
+    public ShardedTrainer(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * train the filter and the NaiveBayes model of a classifier.
+     * @param classifier configured with a StringToWordVector and a NaiveBayesMultinomial(Updateable)
+     * @param data labeled messages, with the class set
+     */
+    public void train(VectorizedFilteredClassifier classifier, Instances data) throws Exception {
+        if (!(classifier.getFilter() instanceof StringToWordVector)) {
+            throw new IllegalArgumentException("filter must be a StringToWordVector");
+        }
+        if (!(classifier.getClassifier() instanceof NaiveBayesMultinomial)) {
+            throw new IllegalArgumentException("classifier must be a NaiveBayesMultinomial");
+        }
+        StringToWordVector filter = (StringToWordVector) classifier.getFilter();
+        // pass 2 counts raw words, which only gives the filter's values without transforms or pruning
+        PartialCounts.checkFilter(filter);
+        NaiveBayesMultinomial nb = (NaiveBayesMultinomial) classifier.getClassifier();
+
+        Instances header = new Instances(data, 0);
+        List < Instances > shards = new ArrayList < > ();
+        for (int i = 0; i < threads; i++) {
+            int from = (int)((long) data.numInstances() * i / threads);
+            int to = (int)((long) data.numInstances() * (i + 1) / threads);
+            shards.add(new Instances(data, from, to - from));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            // pass 1: per-shard dictionaries, aggregated into the filter's own builder
+            List < Callable < DictionaryBuilder >> dictionaryTasks = new ArrayList < > ();
+            for (Instances shard: shards) {
+                dictionaryTasks.add(() -> buildDictionary(filter, header, shard));
+            }
+            filter.setInputFormat(header);
+            DictionaryBuilder dictionary = dictionaryBuilder(filter);
+            for (DictionaryBuilder shardDictionary: join(pool.invokeAll(dictionaryTasks))) {
+                dictionary.aggregate(shardDictionary);
+            }
+            filter.batchFinished();
+
+            // pass 2: per-shard word counts per class
+            WordCounter counter = WordCounter.of(filter);
+            int numClasses = header.numClasses();
+            List < Callable < double[][] >> countTasks = new ArrayList < > ();
+            for (Instances shard: shards) {
+                countTasks.add(() -> count(counter, numClasses, shard));
+            }
+            double[][] counts = null;
+            for (double[][] shardCounts: join(pool.invokeAll(countTasks))) {
+                if (counts == null) {
+                    counts = shardCounts;
+                    continue;
+                }
+                for (int c = 0; c <= numClasses; c++) {
+                    for (int w = 0; w < counts[c].length; w++) {
+                        counts[c][w] += shardCounts[c][w];
+                    }
+                }
+            }
+
+            install(nb, filter.getOutputFormat(), counts);
+            classifier.setTrained(filter, nb);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * feed one shard to a fresh copy of the untrained filter's DictionaryBuilder.
+     */
+    private static DictionaryBuilder buildDictionary(StringToWordVector filter, Instances header, Instances shard)
+    throws Exception {
+        StringToWordVector copy = (StringToWordVector) Filter.makeCopy(filter);
+        copy.setInputFormat(header);
+        DictionaryBuilder dictionary = dictionaryBuilder(copy);
+        for (Instance row: shard) {
+            dictionary.processInstance(row);
+        }
+        return dictionary;
+    }
+
+    /**
+     * count the dictionary words of one shard per class.
+     * @return rows 0 to numClasses - 1 hold the word counts of each class, the last row holds
+     *         the number of messages of each class
+     */
+    private static double[][] count(WordCounter counter, int numClasses, Instances shard) {
+        double[][] counts = new double[numClasses + 1][];
+        for (int c = 0; c < numClasses; c++) {
+            counts[c] = new double[counter.numWords()];
+        }
+        counts[numClasses] = new double[numClasses];
+
+        for (Instance row: shard) {
+            if (row.classIsMissing()) {
+                continue;
+            }
+            int c = (int) row.classValue();
+            WordCounter.Counts words = counter.count(row.stringValue(1));
+            for (int i = 0; i < words.size(); i++) {
+                counts[c][words.word(i)] += words.value(i);
+            }
+            counts[numClasses][c]++;
+        }
+        return counts;
+    }
+
+    /**
+     * set the tables of a NaiveBayes model to what buildClassifier() computes from these counts.
+     * @param nb the model
+     * @param header the filtered data format, the class attribute first
+     * @param counts word counts per class and messages per class, as count() returns them
+     */
+    static void install(NaiveBayesMultinomial nb, Instances header, double[][] counts) throws Exception {
+        int numClasses = header.numClasses();
+        int numAttributes = header.numAttributes();
+        double[] docsPerClass = counts[numClasses];
+        double numDocs = 0;
+        for (double docs: docsPerClass) {
+            numDocs += docs;
+        }
+
+        // every attribute starts with a count of 1, the words follow the class attribute
+        double[][] probOfWordGivenClass = new double[numClasses][numAttributes];
+        double[] wordsPerClass = new double[numClasses];
+        double[] probOfClass = new double[numClasses];
+        for (int c = 0; c < numClasses; c++) {
+            probOfWordGivenClass[c][header.classIndex()] = 1;
+            int word = 0;
+            for (int i = 0; i < numAttributes; i++) {
+                if (i != header.classIndex()) {
+                    probOfWordGivenClass[c][i] = 1 + counts[c][word];
+                    wordsPerClass[c] += counts[c][word];
+                    word++;
+                }
+            }
+        }
+
+        if (nb instanceof NaiveBayesMultinomialUpdateable) {
+            // raw counts, as updateClassifier() leaves them
+            for (int c = 0; c < numClasses; c++) {
+                wordsPerClass[c] += numAttributes;
+                probOfClass[c] = 1 + docsPerClass[c];
+            }
+            NaiveBayesFields.write(NaiveBayesMultinomialUpdateable.class, nb, "m_wordsPerClass", wordsPerClass);
+        } else {
+            // log-probabilities and priors, as NaiveBayesMultinomial.buildClassifier() leaves them
+            for (int c = 0; c < numClasses; c++) {
+                double total = wordsPerClass[c] + numAttributes - 1;
+                for (int i = 0; i < numAttributes; i++) {
+                    probOfWordGivenClass[c][i] = Math.log(probOfWordGivenClass[c][i] / total);
+                }
+                probOfClass[c] = (docsPerClass[c] + 1) / (numDocs + numClasses);
+            }
+        }
+
+        NaiveBayesFields.write(NaiveBayesMultinomial.class, nb, "m_headerInfo", new Instances(header, 0));
+        NaiveBayesFields.write(NaiveBayesMultinomial.class, nb, "m_numClasses", numClasses);
+        NaiveBayesFields.write(NaiveBayesMultinomial.class, nb, "m_numAttributes", numAttributes);
+        NaiveBayesFields.write(NaiveBayesMultinomial.class, nb, "m_probOfWordGivenClass", probOfWordGivenClass);
+        NaiveBayesFields.write(NaiveBayesMultinomial.class, nb, "m_probOfClass", probOfClass);
+    }
+
+    /**
+     * read the protected DictionaryBuilder of a StringToWordVector, which has no accessor for it.
+     */
+    static DictionaryBuilder dictionaryBuilder(StringToWordVector filter) throws ReflectiveOperationException {
+        Field field = StringToWordVector.class.getDeclaredField("m_dictionaryBuilder");
+        field.setAccessible(true);
+        return (DictionaryBuilder) field.get(filter);
+    }
+
+    private static < T > List < T > join(List < Future < T >> futures) throws Exception {
+        List < T > results = new ArrayList < > (futures.size());
+        try {
+            for (Future < T > future: futures) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+        return results;
+    }
+}
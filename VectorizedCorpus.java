@@ -0,0 +1,303 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+
+import weka.filters.Filter;
+
+
+/**
+ * A training corpus after StringToWordVector: the dictionary plus the term values of every
+ * message as a CSR sparse matrix, together with the trained filter.
+ *
+ * Saving it lets fit() retrain the classifier without tokenizing the text again. Row r holds
+ * the values columns[rowStart[r], rowStart[r + 1]) at word columns[...]; word w is attribute
+ * w + 1 of the filtered data, whose attribute 0 is the label.
+ *
+ * File layout, big-endian:
+ *   int magic, int version, long key, int numLabels, numLabels x (short length, UTF-8 bytes),
+ *   int numWords, numWords x (short length, UTF-8 bytes), int numRows, int numValues,
+ *   numRows x byte label, (numRows + 1) x int rowStart, numValues x int column,
+ *   numValues x float value, int filterLength, serialized trained filter.
+ */
+public class VectorizedCorpus {
+
+    private static final int MAGIC = 0x534d5356; // "SMSV"
+    private static final int VERSION = 1;
+
+    private final long key;
+    private final List < String > labels;
+    private final List < String > dictionary;
+    private final byte[] rowLabels;
+    private final int[] rowStart;
+    private final int[] columns;
+    private final float[] values;
+
+    // the trained filter in serialized form, so that it is copied rather than shared
+    private final byte[] filter;
+
+    private VectorizedCorpus(long key, List < String > labels, List < String > dictionary, byte[] rowLabels,
+        int[] rowStart, int[] columns, float[] values, byte[] filter) {
+        this.key = key;
+        this.labels = labels;
+        this.dictionary = dictionary;
+        this.rowLabels = rowLabels;
+        this.rowStart = rowStart;
+        this.columns = columns;
+        this.values = values;
+        this.filter = filter;
+    }
+
+    /**
+     * run a filter over a raw dataset and keep its output.
+     * @param raw dataset with the label as class attribute 0 and the text
+     * @param filter an untrained StringToWordVector, it is trained on raw
+     * @param key stored with the corpus, see DatasetCache
+     * @return the vectorized corpus
+     */
+    public static VectorizedCorpus vectorize(Instances raw, Filter filter, long key) throws Exception {
+        filter.setInputFormat(raw);
+        Instances filtered = Filter.useFilter(raw, filter);
+        if (filtered.classIndex() != 0) {
+            throw new IllegalArgumentException("the filter must keep the label as attribute 0");
+        }
+
+        List < String > labels = new ArrayList < > ();
+        for (int i = 0; i < filtered.numClasses(); i++) {
+            labels.add(filtered.classAttribute().value(i));
+        }
+        List < String > dictionary = new ArrayList < > ();
+        for (int i = 1; i < filtered.numAttributes(); i++) {
+            dictionary.add(filtered.attribute(i).name());
+        }
+
+        int numRows = filtered.numInstances();
+        byte[] rowLabels = new byte[numRows];
+        int[] rowStart = new int[numRows + 1];
+        int numValues = 0;
+        for (int r = 0; r < numRows; r++) {
+            numValues += filtered.instance(r).numValues();
+        }
+        int[] columns = new int[numValues];
+        float[] values = new float[numValues];
+
+        int n = 0;
+        for (int r = 0; r < numRows; r++) {
+            Instance row = filtered.instance(r);
+            rowLabels[r] = (byte) row.classValue();
+            rowStart[r] = n;
+            for (int i = 0; i < row.numValues(); i++) {
+                if (row.index(i) != 0) {
+                    columns[n] = row.index(i) - 1;
+                    values[n] = (float) row.valueSparse(i);
+                    n++;
+                }
+            }
+        }
+        rowStart[numRows] = n;
+
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(serialized)) {
+            out.writeObject(filter);
+        }
+        return new VectorizedCorpus(key, labels, dictionary, rowLabels, rowStart, columns, values, serialized.toByteArray());
+    }
+
+    /**
+     * @return the key the corpus was built with
+     */
+    public long key() {
+        return key;
+    }
+
+    /**
+     * @return number of messages
+     */
+    public int numRows() {
+        return rowLabels.length;
+    }
+
+    /**
+     * @return the words, in attribute order
+     */
+    public List < String > dictionary() {
+        return dictionary;
+    }
+
+    /**
+     * @return a fresh copy of the trained filter
+     */
+    public Filter filter() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(filter))) {
+            return (Filter) in.readObject();
+        }
+    }
+
+    /**
+     * rebuild the filtered dataset: the label, then one numeric attribute per word.
+     * @return sparse instances, equal to the filter output
+     */
+    public Instances toInstances() {
+        ArrayList < Attribute > attributes = new ArrayList < > (dictionary.size() + 1);
+        attributes.add(new Attribute("label", new ArrayList < > (labels)));
+        for (String word: dictionary) {
+            attributes.add(new Attribute(word));
+        }
+
+        Instances dataset = new Instances("SMS spam vectorized", attributes, numRows());
+        dataset.setClassIndex(0);
+        for (int r = 0; r < numRows(); r++) {
+            int length = rowStart[r + 1] - rowStart[r];
+            double[] rowValues = new double[length + 1];
+            int[] indices = new int[length + 1];
+            rowValues[0] = rowLabels[r];
+            for (int i = 0; i < length; i++) {
+                indices[i + 1] = columns[rowStart[r] + i] + 1;
+                rowValues[i + 1] = values[rowStart[r] + i];
+            }
+            dataset.add(new SparseInstance(1, rowValues, indices, attributes.size()));
+        }
+        return dataset;
+    }
+
+    /**
+     * write the corpus to a file.
+     * @param fileName The name of the file.
+     */
+    public void write(String fileName) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        writeStrings(header, labels);
+        writeStrings(header, dictionary);
+
+        ByteBuffer head = ByteBuffer.allocate(16 + header.size() + 8);
+        head.putInt(MAGIC).putInt(VERSION).putLong(key).put(header.toByteArray());
+        head.putInt(numRows()).putInt(columns.length);
+        head.flip();
+
+        long bodySize = numRows() + 4L * rowStart.length + 8L * columns.length + 4 + filter.length;
+        if (bodySize > Integer.MAX_VALUE) {
+            throw new IOException("vectorized corpus larger than 2 GB");
+        }
+        ByteBuffer body = ByteBuffer.allocate((int) bodySize);
+        body.put(rowLabels);
+        body.asIntBuffer().put(rowStart);
+        body.position(body.position() + 4 * rowStart.length);
+        body.asIntBuffer().put(columns);
+        body.position(body.position() + 4 * columns.length);
+        body.asFloatBuffer().put(values);
+        body.position(body.position() + 4 * values.length);
+        body.putInt(filter.length).put(filter);
+        body.flip();
+
+        try (FileChannel out = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (head.hasRemaining()) {
+                out.write(head);
+            }
+            while (body.hasRemaining()) {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * read a corpus written by write().
+     * @param fileName The name of the file.
+     * @return the corpus
+     */
+    public static VectorizedCorpus read(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("vectorized corpus larger than 2 GB");
+            }
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            long key = readHeader(in);
+            List < String > labels = readStrings(in);
+            List < String > dictionary = readStrings(in);
+
+            int numRows = in.getInt();
+            int numValues = in.getInt();
+            byte[] rowLabels = new byte[numRows];
+            in.get(rowLabels);
+            int[] rowStart = new int[numRows + 1];
+            in.asIntBuffer().get(rowStart);
+            in.position(in.position() + 4 * rowStart.length);
+            int[] columns = new int[numValues];
+            in.asIntBuffer().get(columns);
+            in.position(in.position() + 4 * numValues);
+            float[] values = new float[numValues];
+            in.asFloatBuffer().get(values);
+            in.position(in.position() + 4 * numValues);
+            byte[] filter = new byte[in.getInt()];
+            in.get(filter);
+
+            return new VectorizedCorpus(key, labels, dictionary, rowLabels, rowStart, columns, values, filter);
+        }
+    }
+
+    /**
+     * @param fileName The name of the file.
+     * @param key the expected key
+     * @return true if the file holds a corpus written with the key
+     */
+    public static boolean isFresh(String fileName, long key) {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            ByteBuffer head = ByteBuffer.allocate(16);
+            channel.read(head, 0);
+            head.flip();
+            return head.remaining() == 16 && readHeader(head) == key;
+        } catch (IOException e) {
+            // missing, unreadable or older format, treat as stale
+            return false;
+        }
+    }
+
+    private static long readHeader(ByteBuffer in) throws IOException {
+        if (in.getInt() != MAGIC) {
+            throw new IOException("not a vectorized corpus");
+        }
+        int version = in.getInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported vectorized corpus version " + version);
+        }
+        return in.getLong();
+    }
+
+    private static void writeStrings(ByteArrayOutputStream out, List < String > strings) {
+        ByteBuffer count = ByteBuffer.allocate(4).putInt(strings.size());
+        out.write(count.array(), 0, 4);
+        for (String s: strings) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.write(bytes.length >>> 8);
+            out.write(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static List < String > readStrings(ByteBuffer in) {
+        int count = in.getInt();
+        List < String > strings = new ArrayList < > (count);
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[in.getShort() & 0xffff];
+            in.get(bytes);
+            strings.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return strings;
+    }
+}
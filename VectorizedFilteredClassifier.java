@@ -0,0 +1,73 @@
+import weka.classifiers.Classifier;
+import weka.classifiers.meta.FilteredClassifier;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import weka.filters.Filter;
+
+
+/**
+ * FilteredClassifier that can also be trained from a VectorizedCorpus, taking the trained
+ * filter and the filtered data from the corpus instead of running the filter again, or take
+ * a filter and classifier trained elsewhere, e.g. by ShardedTrainer.
+ * Once built it behaves exactly like a FilteredClassifier.
+ */
+public class VectorizedFilteredClassifier extends FilteredClassifier {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * build the classifier from an already vectorized corpus.
+     * @param corpus training data after the filter, with the trained filter
+     */
+    public void buildClassifier(VectorizedCorpus corpus) throws Exception {
+        if (m_Classifier == null) {
+            throw new Exception("No base classifiers have been set!");
+        }
+
+        Instances filtered = corpus.toInstances();
+        getClassifier().getCapabilities().testWithFail(filtered);
+
+        m_Filter = corpus.filter();
+        m_FilteredInstances = filtered.stringFreeStructure();
+        m_Classifier.buildClassifier(filtered);
+    }
+
+    /**
+     * the steps of FilteredClassifier.distributionForInstance(), timed as the filter and
+     * score stages when Metrics are enabled.
+     */
+    @Override
+    public double[] distributionForInstance(Instance instance) throws Exception {
+        if (!Metrics.ENABLED) {
+            return super.distributionForInstance(instance);
+        }
+        long start = Metrics.FILTER.start();
+        Instance filtered = filterInstance(instance);
+        Metrics.FILTER.stop(start);
+        if (filtered == null) {
+            // the filter consumed the instance, no prediction
+            if (instance.classAttribute().isNumeric()) {
+                return new double[] {Utils.missingValue()};
+            }
+            return new double[instance.classAttribute().numValues()];
+        }
+        start = Metrics.SCORE.start();
+        double[] distribution = m_Classifier.distributionForInstance(filtered);
+        Metrics.SCORE.stop(start);
+        return distribution;
+    }
+
+    /**
+     * use a filter and a classifier that were trained together outside this class.
+     * @param filter the trained filter
+     * @param classifier the classifier trained on the filter's output
+     */
+    public void setTrained(Filter filter, Classifier classifier) {
+        m_Filter = filter;
+        m_Classifier = classifier;
+        m_FilteredInstances = filter.getOutputFormat().stringFreeStructure();
+    }
+}
@@ -0,0 +1,137 @@
+import java.util.Arrays;
+
+
+/**
+ * Open-addressing map from words to dense indices 0..size()-1.
+ *
+ * Words can be looked up straight from a char[] range together with its String.hashCode(),
+ * so a tokenizer that hashes while it scans finds dictionary words without creating Strings.
+ * Lookups are safe from many threads once no more words are added.
+ */
+public class Vocabulary implements WordCounter.Dictionary {
+
+    private String[] words;
+    private int[] slots;
+    private int size;
+
+    public Vocabulary() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize number of words to make room for
+     */
+    public Vocabulary(int expectedSize) {
+        words = new String[Math.max(expectedSize, 16)];
+        slots = new int[tableSize(expectedSize)];
+        Arrays.fill(slots, -1);
+    }
+
+    /**
+     * add a word if it is not present yet.
+     * @param word the word
+     * @return index of the word
+     */
+    public int add(String word) {
+        int index = get(word);
+        if (index >= 0) {
+            return index;
+        }
+        if (size == words.length) {
+            words = Arrays.copyOf(words, size * 2);
+        }
+        if (2 * (size + 1) > slots.length) {
+            rehash(slots.length * 2);
+        }
+        words[size] = word;
+        slots[free(word.hashCode())] = size;
+        return size++;
+    }
+
+    /**
+     * @param word the word
+     * @return index of the word, or -1 if it is not present
+     */
+    @Override
+    public int get(String word) {
+        int mask = slots.length - 1;
+        for (int slot = mix(word.hashCode()) & mask;; slot = (slot + 1) & mask) {
+            int index = slots[slot];
+            if (index < 0 || words[index].equals(word)) {
+                return index;
+            }
+        }
+    }
+
+    /**
+     * look up the word held in chars[offset, offset + length).
+     * @param hash String.hashCode() of the word
+     * @return index of the word, or -1 if it is not present
+     */
+    @Override
+    public int get(char[] chars, int offset, int length, int hash) {
+        int mask = slots.length - 1;
+        for (int slot = mix(hash) & mask;; slot = (slot + 1) & mask) {
+            int index = slots[slot];
+            if (index < 0 || matches(words[index], chars, offset, length)) {
+                return index;
+            }
+        }
+    }
+
+    /**
+     * @param index index of a word
+     * @return the word
+     */
+    public String word(int index) {
+        return words[index];
+    }
+
+    /**
+     * @return number of words
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private static boolean matches(String word, char[] chars, int offset, int length) {
+        if (word.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (word.charAt(i) != chars[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int free(int hash) {
+        int mask = slots.length - 1;
+        int slot = mix(hash) & mask;
+        while (slots[slot] >= 0) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(int tableSize) {
+        slots = new int[tableSize];
+        Arrays.fill(slots, -1);
+        for (int i = 0; i < size; i++) {
+            slots[free(words[i].hashCode())] = i;
+        }
+    }
+
+    // keep the table at most half full
+    static int tableSize(int expectedSize) {
+        return Integer.highestOneBit(Math.max(expectedSize, 8) * 4 - 1);
+    }
+
+    // spread String.hashCode() bits, which are weak in the low bits for short words
+    static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,163 @@
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import weka.core.Instances;
+
+
+/**
+ * Replays messages through a scoring path before it serves real traffic.
+ *
+ * The first predictions of a fresh JVM load the Weka, filter and tokenizer classes and run in
+ * the interpreter, so they take far longer than the steady state. Warming up replays a sample
+ * until the hot methods have been called often enough for the JIT to compile them, and times a
+ * pass over the sample before and after so that the gain can be checked. The warm-up calls are
+ * not traffic, so the per-message stages of Metrics are reset afterwards.
+ */
+public class WarmUp {
+
+    private static Logger LOGGER = Logger.getLogger("WarmUp");
+
+    // calls per method after which the server compiler has usually taken over
+    private static final int MIN_CALLS = 20000;
+
+    /**
+     * What a warm-up did.
+     */
+    public static final class Report {
+        final int predictions;
+        final long nanos;
+        final double coldP99Micros;
+        final double warmP99Micros;
+
+        Report(int predictions, long nanos, double coldP99Micros, double warmP99Micros) {
+            this.predictions = predictions;
+            this.nanos = nanos;
+            this.coldP99Micros = coldP99Micros;
+            this.warmP99Micros = warmP99Micros;
+        }
+
+        /**
+         * @return time spent warming up, in milliseconds
+         */
+        public double millis() {
+            return nanos / 1e6;
+        }
+
+        /**
+         * @return p99 latency of the first pass over the sample, in microseconds
+         */
+        public double coldP99Micros() {
+            return coldP99Micros;
+        }
+
+        /**
+         * @return p99 latency of a pass over the sample after warming up, in microseconds
+         */
+        public double warmP99Micros() {
+            return warmP99Micros;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("warm-up: %d predictions in %.0f ms, p99 %.1f us before, %.1f us after",
+                predictions, millis(), coldP99Micros, warmP99Micros);
+        }
+    }
+
+    /**
+     * replay messages through a scoring function until it is warm, or the time budget is spent.
+     * @param scorer the scoring path to warm up, such as WekaClassifier::predict
+     * @param texts messages to replay, at least one
+     * @param budgetMillis the longest the warm-up may take; the timed passes come on top of it
+     * @return the time taken and the latencies before and after
+     */
+    public static Report run(Function < String, ? > scorer, List < String > texts, long budgetMillis) {
+        if (texts.isEmpty()) {
+            throw new IllegalArgumentException("no messages to warm up with");
+        }
+        long start = System.nanoTime();
+        double cold = p99(scorer, texts);
+        int predictions = texts.size();
+
+        long deadline = start + budgetMillis * 1000000L;
+        while (predictions < MIN_CALLS && System.nanoTime() < deadline) {
+            for (String text: texts) {
+                scorer.apply(text);
+            }
+            predictions += texts.size();
+        }
+        long nanos = System.nanoTime() - start;
+
+        double warm = p99(scorer, texts);
+        Metrics.resetMessageStages();
+        return new Report(predictions + texts.size(), nanos, cold, warm);
+    }
+
+    /**
+     * time one pass over the messages.
+     * @return p99 latency of the pass, in microseconds
+     */
+    private static double p99(Function < String, ? > scorer, List < String > texts) {
+        long[] latencies = new long[texts.size()];
+        for (int i = 0; i < latencies.length; i++) {
+            long start = System.nanoTime();
+            scorer.apply(texts.get(i));
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        return latencies[Math.min(latencies.length - 1, (int)(latencies.length * 0.99))] / 1e3;
+    }
+
+    /**
+     * read the first messages of a raw data set.
+     * @param fileName The name of the file.
+     * @param labels the class labels the file may use
+     * @param size maximum number of messages
+     * @return the messages, empty if the file cannot be read
+     */
+    public static List < String > trainingSample(String fileName, List < String > labels, int size) {
+        List < String > texts = new ArrayList < > (size);
+        try (RawDatasetReader reader = new RawDatasetReader(fileName, labels)) {
+            while (texts.size() < size && reader.next()) {
+                texts.add(reader.text());
+            }
+        } catch (IOException e) {
+            LOGGER.warning(e.getMessage());
+        }
+        return texts;
+    }
+
+    /**
+     * make up messages from the words of a dictionary, for when no training data is at hand.
+     * @param header output format of the filter, one attribute per word besides the class
+     * @param size number of messages
+     * @return messages of 3 to 20 words, known and unknown
+     */
+    public static List < String > syntheticSample(Instances header, int size) {
+        List < String > words = new ArrayList < > ();
+        for (int i = 0; i < header.numAttributes(); i++) {
+            if (i != header.classIndex()) {
+                words.add(header.attribute(i).name());
+            }
+        }
+        words.add("unknownword");
+
+        Random random = new Random(42);
+        List < String > texts = new ArrayList < > (size);
+        for (int m = 0; m < size; m++) {
+            StringBuilder text = new StringBuilder();
+            int length = 3 + random.nextInt(18);
+            for (int w = 0; w < length; w++) {
+                text.append(w == 0 ? "" : " ").append(words.get(random.nextInt(words.size())));
+            }
+            texts.add(text.toString());
+        }
+        return texts;
+    }
+}
@@ -7,21 +7,32 @@ import java.io.IOException;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
 import java.util.logging.Logger;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Consumer;
 import weka.classifiers.Evaluation;
-import weka.classifiers.bayes.NaiveBayesMultinomial;
+import weka.classifiers.UpdateableClassifier;
+import weka.classifiers.bayes.NaiveBayesMultinomialUpdateable;
 import weka.classifiers.meta.FilteredClassifier;
 
+import weka.core.BatchPredictor;
+import weka.core.DictionaryBuilder;
 import weka.core.Instances;
 import weka.core.Instance;
 import weka.core.Attribute;
 import weka.core.DenseInstance;
+import weka.core.Utils;
 import weka.core.converters.ArffSaver;
 import weka.core.converters.ArffLoader.ArffReader;
-import weka.core.tokenizers.NGramTokenizer;
+import weka.core.tokenizers.Tokenizer;
 
+import weka.filters.Filter;
 import weka.filters.unsupervised.attribute.StringToWordVector;
 
 
@@ -39,26 +50,33 @@ public class WekaClassifier {
     //declare train and test data Instances
     private Instances trainData;
 
+    // training data after the filter, lets fit() skip tokenization
+    private VectorizedCorpus trainCorpus;
+
 
     //declare attributes of Instance
     private ArrayList < Attribute > wekaAttributes;
 
+    // per-thread prediction instance, reused across predict() calls
+    private final ThreadLocal < Instance > predictionTemplate = ThreadLocal.withInitial(this::newPredictionTemplate);
+
     //declare and initialize file locations
     private static final String TRAIN_DATA = "dataset/train.txt";
-    private static final String TRAIN_ARFF_ARFF = "dataset/train.arff";
+    private static final String TRAIN_DATA_BIN = "dataset/train.bin";
+    private static final String TRAIN_DATA_VEC = "dataset/train.vec";
     private static final String TEST_DATA = "dataset/test.txt";
-    private static final String TEST_DATA_ARFF = "dataset/test.arff";
+    private static final String TEST_DATA_BIN = "dataset/test.bin";
 
-    WekaClassifier() {
+    public WekaClassifier() {
 
         /*
          * Class for running an arbitrary classifier on data that has been passed through an arbitrary filter
          * Training data and test instances will be processed by the filter without changing their structure
          */
-        classifier = new FilteredClassifier();
+        classifier = new VectorizedFilteredClassifier();
 
-        // set Multinomial NaiveBayes as arbitrary classifier
-        classifier.setClassifier(new NaiveBayesMultinomial());
+        // set Multinomial NaiveBayes as arbitrary classifier, the updateable version so update() can add messages
+        classifier.setClassifier(new NaiveBayesMultinomialUpdateable());
 
         // Declare text attribute to hold the message
         Attribute attributeText = new Attribute("text", (List < String > ) null);
@@ -81,132 +99,527 @@ public class WekaClassifier {
      */
     public void transform() {
         try {
-            trainData = loadRawDataset(TRAIN_DATA);
-            saveArff(trainData, TRAIN_ARFF_ARFF);
+            //add filter to classifier
+            classifier.setFilter(newFilter());
+
+            // a vectorized corpus built from the same file and settings makes the text unnecessary
+            trainCorpus = null;
+            if (classifier instanceof VectorizedFilteredClassifier) {
+                long key = new DatasetCache(cacheSettings(classifier.getFilter())).key(TRAIN_DATA);
+                if (VectorizedCorpus.isFresh(TRAIN_DATA_VEC, key)) {
+                    trainCorpus = VectorizedCorpus.read(TRAIN_DATA_VEC);
+                    return;
+                }
+            }
+            trainData = loadCachedDataset(TRAIN_DATA, TRAIN_DATA_BIN);
+        } catch (Exception e) {
+            LOGGER.warning(e.getMessage());
+        }
+
 
-            // create the filter and set the attribute to be transformed from text into a feature vector (the last one)
-            StringToWordVector filter = new StringToWordVector();
-            filter.setAttributeIndices("last");
+    }
 
-            //add ngram tokenizer to filter with min and max length set to 1
-            NGramTokenizer tokenizer = new NGramTokenizer();
-            tokenizer.setNGramMinSize(1);
-            tokenizer.setNGramMaxSize(1);
-            //use word delimeter
-            tokenizer.setDelimiters("\\W");
-            filter.setTokenizer(tokenizer);
+    /**
+     * @return an untrained filter that turns the text (the last attribute) into a feature vector
+     */
+    private StringToWordVector newFilter() {
+        StringToWordVector filter = new StringToWordVector();
+        filter.setAttributeIndices("last");
 
-            //convert tokens to lowercase
-            filter.setLowerCaseTokens(true);
+        //add word tokenizer to filter, same tokens as an ngram tokenizer of size 1 with "\\W" delimiters
+        filter.setTokenizer(new AsciiWordTokenizer());
 
-            //add filter to classifier
-            classifier.setFilter(filter);
+        //convert tokens to lowercase
+        filter.setLowerCaseTokens(true);
+        return filter;
+    }
+
+    /**
+     * build the classifier with the Training data
+     */
+    public void fit() {
+        ClassifierEvents.Fit event = new ClassifierEvents.Fit(TRAIN_DATA);
+        timed(Metrics.FIT, event, () -> {
+            if (classifier instanceof VectorizedFilteredClassifier) {
+                if (trainCorpus == null) {
+                    trainCorpus = vectorize(trainData, TRAIN_DATA, TRAIN_DATA_VEC);
+                }
+                event.messages = trainCorpus.numRows();
+                ((VectorizedFilteredClassifier) classifier).buildClassifier(trainCorpus);
+            } else {
+                event.messages = trainData.numInstances();
+                classifier.buildClassifier(trainData);
+            }
+        });
+    }
+
+    /**
+     * build the classifier with the Training data on several threads, see ShardedTrainer.
+     * @param threads number of threads
+     */
+    public void fit(int threads) {
+        if (!(classifier instanceof VectorizedFilteredClassifier)) {
+            LOGGER.warning("sharded training needs a VectorizedFilteredClassifier");
+            return;
+        }
+        ClassifierEvents.Fit event = new ClassifierEvents.Fit(TRAIN_DATA + ", " + threads + " threads");
+        timed(Metrics.FIT, event, () -> {
+            Instances dataset = trainData != null ? trainData : loadCachedDataset(TRAIN_DATA, TRAIN_DATA_BIN);
+            event.messages = dataset.numInstances();
+            new ShardedTrainer(threads).train((VectorizedFilteredClassifier) classifier, dataset);
+        });
+    }
+
+    /**
+     * count the words of one labeled file into a partial count file, see PartialCounts. Files
+     * counted separately, for instance on different machines, are turned into one classifier
+     * by fit(List).
+     * @param fileName The name of the file.
+     * @param partialFile The name of the partial count file.
+     */
+    public void countPartial(String filename, String partialFile) {
+        try {
+            StringToWordVector filter = newFilter();
+            PartialCounts.checkFilter(filter);
+            // before setInputFormat(), which resolves "last" in the filter's options
+            String settings = cacheSettings(filter);
+            filter.setInputFormat(newDataset("SMS spam", 0));
+
+            DictionaryBuilder dictionary = ShardedTrainer.dictionaryBuilder(filter);
+            long[] docsPerClass = new long[labels().size()];
+            streamRawDataset(filename, 10000, chunk -> {
+                for (Instance message: chunk) {
+                    if (!message.classIsMissing()) {
+                        dictionary.processInstance(message);
+                        docsPerClass[(int) message.classValue()]++;
+                    }
+                }
+            });
+            PartialCounts.write(partialFile, settings, labels(), docsPerClass, dictionary.getDictionaries(false));
         } catch (Exception e) {
             LOGGER.warning(e.getMessage());
         }
+    }
 
+    /**
+     * build the classifier from partial count files written by countPartial(), as if it had
+     * been trained on all their messages at once. The files are merged in a streaming pass.
+     * @param partialFiles The names of the partial count files.
+     */
+    public void fit(List < String > partialFiles) {
+        if (!(classifier instanceof VectorizedFilteredClassifier)) {
+            LOGGER.warning("training from partial counts needs a VectorizedFilteredClassifier");
+            return;
+        }
+        timed(Metrics.FIT, new ClassifierEvents.Fit(String.join(", ", partialFiles)), () -> {
+            StringToWordVector filter = newFilter();
+            classifier.setFilter(filter);
+            PartialCounts.train(partialFiles, cacheSettings(filter), (VectorizedFilteredClassifier) classifier,
+                newDataset("SMS spam", 0));
+        });
+    }
 
+    /**
+     * build the classifier with the given data, from scratch.
+     * @param dataset labeled messages, loaded like the training data
+     */
+    public void fit(Instances dataset) {
+        ClassifierEvents.Fit event = new ClassifierEvents.Fit(dataset.relationName());
+        event.messages = dataset.numInstances();
+        timed(Metrics.FIT, event, () -> classifier.buildClassifier(dataset));
     }
 
     /**
-     * build the classifier with the Training data
+     * A step of training or model I/O.
      */
-    public void fit() {
+    private interface Step {
+        void run() throws Exception;
+    }
+
+    /**
+     * run a step, time it and record its event. An exception, or a class that cannot be loaded
+     * or linked, fails the step and is logged; other errors, such as running out of memory, are
+     * recorded as a failed step and thrown on.
+     * @param timer the stage the step is timed as
+     * @param event a new event for the step, whose fields the step may set
+     * @param step the work
+     * @return true if the step succeeded
+     */
+    private static boolean timed(Metrics.Timer timer, ClassifierEvents.StepEvent event, Step step) {
+        long start = timer.start();
+        event.begin();
+        boolean succeeded = false;
         try {
-            classifier.buildClassifier(trainData);
+            step.run();
+            succeeded = true;
+        } catch (Exception | LinkageError e) {
+            LOGGER.warning(e.getMessage());
+        } finally {
+            timer.stop(start);
+            event.commit(succeeded);
+        }
+        return succeeded;
+    }
+
+    /**
+     * add labeled messages to the trained classifier without going over the earlier ones again,
+     * so the cost depends on the new messages only. The vocabulary stays the one built by
+     * fit(), words it does not contain are ignored.
+     * @param dataset labeled messages, loaded like the training data
+     */
+    public void update(Instances dataset) {
+        if (!(classifier.getClassifier() instanceof UpdateableClassifier)) {
+            LOGGER.warning(classifier.getClassifier().getClass().getName() + " can not be updated");
+            return;
+        }
+        try {
+            UpdateableClassifier model = (UpdateableClassifier) classifier.getClassifier();
+            Filter filter = classifier.getFilter();
+            for (Instance message: dataset) {
+                if (message.classIsMissing()) {
+                    continue;
+                }
+                // the trained filter converts each message as soon as it is input
+                filter.input(message);
+                model.updateClassifier(filter.output());
+            }
         } catch (Exception e) {
             LOGGER.warning(e.getMessage());
         }
     }
 
+    /**
+     * add one labeled message to the trained classifier, see update(Instances).
+     * @param text the message.
+     * @param label its class label (spam or ham).
+     */
+    public void update(String text, String label) {
+        Instances dataset = newDataset("updatedata", 1);
+        int labelIndex = dataset.classAttribute().indexOfValue(label);
+        if (labelIndex < 0) {
+            LOGGER.warning("unknown label: " + label);
+            return;
+        }
+        double[] values = new double[2];
+        values[0] = labelIndex;
+        values[1] = dataset.attribute(1).addStringValue(text);
+        dataset.add(new DenseInstance(1, values));
+        update(dataset);
+    }
+
 
 
     /**
-     * classify a new message into spam or ham.
+     * classify a new message into spam or ham. The message still goes through the filter, which
+     * allocates a few KB per call; the model returned by compile() predicts without allocating.
      * @param message to be classified.
      * @return a class label (spam or ham )
      */
     public String predict(String text) {
+        long start = Metrics.PREDICT.start();
+        ClassifierEvents.Predict event = ClassifierEvents.Predict.sample();
         try {
-            // create new Instance for prediction.
-            DenseInstance newinstance = new DenseInstance(2);
-
-            //weka demand a dataset to be set to new Instance
-            Instances newDataset = new Instances("predictiondata", wekaAttributes, 1);
-            newDataset.setClassIndex(0);
-
-            newinstance.setDataset(newDataset);
-
-            // text attribute value set to value to be predicted
-            newinstance.setValue(wekaAttributes.get(1), text);
+            // reuse this thread's instance, only the text value changes.
+            Instance newinstance = predictionTemplate.get();
+
+            // replace the single string value held by the template's text attribute
+            newinstance.dataset().attribute(1).setStringValue(text);
+
+            if (event != null) {
+                // the same steps as classifyInstance(), keeping the distribution for the event
+                double[] distribution = classifier.distributionForInstance(newinstance);
+                String label = newinstance.dataset().classAttribute().value(Utils.maxIndex(distribution));
+                event.end();
+                if (event.shouldCommit()) {
+                    event.commit(text, countTokens(text), label, distribution);
+                }
+                return label;
+            }
 
             // predict most likely class for the instance
             double pred = classifier.classifyInstance(newinstance);
 
             // return original label
-            return newDataset.classAttribute().value((int) pred);
+            return newinstance.dataset().classAttribute().value((int) pred);
         } catch (Exception e) {
             LOGGER.warning(e.getMessage());
             return null;
+        } finally {
+            // failed predictions are counted too
+            Metrics.PREDICT.stop(start);
         }
     }
 
+    /**
+     * @return the number of tokens the filter's tokenizer finds in a message
+     */
+    private int countTokens(String text) {
+        if (!(classifier.getFilter() instanceof StringToWordVector)) {
+            return 0;
+        }
+        Tokenizer tokenizer = ((StringToWordVector) classifier.getFilter()).getTokenizer();
+        tokenizer.tokenize(text);
+        int tokens = 0;
+        if (tokenizer instanceof AsciiWordTokenizer) {
+            while (((AsciiWordTokenizer) tokenizer).advance()) {
+                tokens++;
+            }
+            return tokens;
+        }
+        while (tokenizer.hasMoreElements()) {
+            tokenizer.nextElement();
+            tokens++;
+        }
+        return tokens;
+    }
+
+    /**
+     * classify a batch of messages into spam or ham.
+     * @param texts messages to be classified.
+     * @return the class labels, in the order of the messages
+     */
+    public List < String > predictBatch(List < String > texts) {
+        double[][] distributions = distributionForBatch(texts);
+        if (distributions == null) {
+            return null;
+        }
+
+        Attribute classAttribute = wekaAttributes.get(0);
+        List < String > labels = new ArrayList < > (distributions.length);
+        for (double[] distribution: distributions) {
+            labels.add(classAttribute.value(Utils.maxIndex(distribution)));
+        }
+        return labels;
+    }
+
+    /**
+     * estimate class membership probabilities for a batch of messages.
+     * The whole batch is put in one dataset so the filter converts it in a single
+     * pass, and it is scored through BatchPredictor when the classifier offers it.
+     * @param texts messages to be classified.
+     * @return one distribution per message, indexed like the label values
+     */
+    public double[][] distributionForBatch(List < String > texts) {
+        try {
+            Instances batch = newDataset("predictiondata", texts.size());
+
+            for (String text: texts) {
+                DenseInstance row = new DenseInstance(2);
+                row.setDataset(batch);
+                row.setMissing(0);
+                row.setValue(1, batch.attribute(1).addStringValue(text));
+                batch.add(row);
+            }
+
+            if (classifier instanceof BatchPredictor) {
+                return ((BatchPredictor) classifier).distributionsForInstances(batch);
+            }
+
+            double[][] distributions = new double[batch.numInstances()][];
+            for (int i = 0; i < distributions.length; i++) {
+                distributions[i] = classifier.distributionForInstance(batch.instance(i));
+            }
+            return distributions;
+        } catch (Exception e) {
+            LOGGER.warning(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * create the instance reused by predict() on the calling thread.
+     * @return an instance whose text value is index 0 of its own text attribute
+     */
+    private Instance newPredictionTemplate() {
+        Instances header = newDataset("predictiondata", 1);
+
+        DenseInstance template = new DenseInstance(2);
+        template.setDataset(header);
+
+        // setStringValue() always stores the text at index 0, so point the instance there once
+        header.attribute(1).setStringValue("");
+        template.setValue(1, 0);
+        return template;
+    }
+
+    /**
+     * create an empty dataset with the same structure as the training data.
+     * The text attribute is a fresh one rather than a copy, so it does not carry the
+     * strings of the training data and is never shared with another dataset.
+     * @param name name of the relation
+     * @param capacity initial capacity of the dataset
+     * @return an empty dataset with the class index set
+     */
+    private Instances newDataset(String name, int capacity) {
+        ArrayList < Attribute > attributes = new ArrayList < > ();
+        attributes.add((Attribute) wekaAttributes.get(0).copy());
+        attributes.add(new Attribute(wekaAttributes.get(1).name(), (List < String > ) null));
+
+        //weka demand a dataset to be set to new Instance
+        Instances header = new Instances(name, attributes, capacity);
+        header.setClassIndex(0);
+        return header;
+    }
+
     /**
      * evaluate the classifier with the Test data
      * @return evaluation summary as string
      */
     public String evaluate() {
-        try {
-            //load testdata
-            Instances testData;
-            if (new File(TEST_DATA_ARFF).exists()) {
-                testData = loadArff(TEST_DATA_ARFF);
-                testData.setClassIndex(0);
-            } else {
-                testData = loadRawDataset(TEST_DATA);
-                saveArff(testData, TEST_DATA_ARFF);
-            }
+        //load testdata
+        Instances testData;
+        testData = loadCachedDataset(TEST_DATA, TEST_DATA_BIN);
+        return evaluate(testData);
+    }
 
+    /**
+     * evaluate the classifier with the given data
+     * @param testData labeled messages, loaded like the test data
+     * @return evaluation summary as string
+     */
+    public String evaluate(Instances testData) {
+        ClassifierEvents.Evaluate event = new ClassifierEvents.Evaluate();
+        event.begin();
+        try {
             Evaluation eval = new Evaluation(testData);
             eval.evaluateModel(classifier, testData);
+            event.commit(testData.numInstances(), eval.pctCorrect() / 100, true);
             return eval.toSummaryString();
         } catch (Exception e) {
             LOGGER.warning(e.getMessage());
+            event.commit(testData.numInstances(), 0, false);
             return null;
         }
     }
 
     /**
-     * This method loads the model to be used as classifier.
-     * @param fileName The name of the file that stores the text.
+     * train a NaiveBayes model on hashed words instead of the StringToWordVector dictionary.
+     * @param bits log2 of the number of hash buckets
+     * @return the trained model
+     */
+    public HashedNaiveBayes fitHashed(int bits) {
+        Instances dataset = trainData != null ? trainData : loadCachedDataset(TRAIN_DATA, TRAIN_DATA_BIN);
+        HashedNaiveBayes model = new HashedNaiveBayes(bits, 0, labels());
+        model.add(dataset);
+        return model;
+    }
+
+    /**
+     * copy the trained classifier into a model that keeps learning while it serves predictions.
+     * @return the online model, or null if the classifier is not updateable
+     */
+    public OnlineModel online() {
+        try {
+            return OnlineModel.of(classifier);
+        } catch (Exception e) {
+            LOGGER.warning(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * run predict() over sample messages until the classes it needs are loaded and the JIT has
+     * compiled it, so that the first real requests do not pay for it. Training messages are
+     * used if the training file can be read, otherwise messages made up from the dictionary.
+     * @param size number of sample messages
+     * @param budgetMillis the longest the warm-up may take
+     * @return the time taken and the p99 latency before and after, or null if there is no model
      */
-    public void loadModel(String fileName) {
+    public WarmUp.Report warmUp(int size, long budgetMillis) {
         try {
+            List < String > texts = WarmUp.trainingSample(TRAIN_DATA, labels(), size);
+            if (texts.isEmpty()) {
+                texts = WarmUp.syntheticSample(classifier.getFilter().getOutputFormat(), size);
+            }
+            WarmUp.Report report = WarmUp.run(this::predict, texts, budgetMillis);
+            LOGGER.info(report.toString());
+            return report;
+        } catch (Exception e) {
+            LOGGER.warning(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * flatten the trained classifier into primitive tables for fast scoring.
+     * @return the compiled model, or null if the classifier cannot be compiled
+     */
+    public CompiledModel compile() {
+        try {
+            return CompiledModel.compile(classifier);
+        } catch (Exception e) {
+            LOGGER.warning(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the trained classifier, shared with this instance.
+     */
+    public FilteredClassifier getClassifier() {
+        return classifier;
+    }
+
+    /**
+     * This method loads the model to be used as classifier. Binary models written by
+     * saveModel() are rebuilt from their tables, other files are read as serialized classifiers.
+     * @param fileName The name of the file that stores the text.
+     * @return true if the model was loaded, false if the classifier was left as it was
+     */
+    public boolean loadModel(String fileName) {
+        ClassifierEvents.ModelLoad event = new ClassifierEvents.ModelLoad(fileName);
+        boolean loaded = timed(Metrics.MODEL_LOAD, event, () -> {
+            if (BinaryModel.isBinaryModel(fileName)) {
+                event.format = "binary";
+                classifier = BinaryModel.read(fileName).toClassifier(newDataset("SMS spam", 0));
+                return;
+            }
+            event.format = "serialized";
             ObjectInputStream in = new ObjectInputStream(new FileInputStream(fileName));
             Object tmp = in .readObject();
             classifier = (FilteredClassifier) tmp; in .close();
+        });
+        if (loaded) {
             LOGGER.info("Loaded model: " + fileName);
-        } catch (IOException e) {
-            LOGGER.warning(e.getMessage());
-        } catch (ClassNotFoundException e) {
-            LOGGER.warning(e.getMessage());
         }
+        return loaded;
     }
 
     /**
-     * This method saves the trained model into a file. This is done by
-     * simple serialization of the classifier object.
+     * This method saves the trained model into a file, in the compact format of BinaryModel.
+     * Classifiers that format cannot hold are saved by simple serialization of the classifier object.
+     * The model is written next to the file and renamed over it, so readers such as ModelHolder
+     * see either the old model or the new one, never a partly written file.
      * @param fileName The name of the file that will store the trained model.
      */
 
     public void saveModel(String fileName) {
-        try {
-            ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(fileName));
-            out.writeObject(classifier);
-            out.close();
+        ClassifierEvents.ModelSave event = new ClassifierEvents.ModelSave(fileName);
+        File tmp = new File(fileName + ".tmp");
+        boolean saved = timed(Metrics.MODEL_SAVE, event, () -> {
+            BinaryModel model;
+            try {
+                model = BinaryModel.of(classifier);
+            } catch (Exception e) {
+                LOGGER.info("Saving serialized classifier: " + e.getMessage());
+                model = null;
+            }
+            if (model != null) {
+                event.format = "binary";
+                model.write(tmp.getPath());
+            } else {
+                event.format = "serialized";
+                ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(tmp));
+                out.writeObject(classifier);
+                out.close();
+            }
+            Files.move(tmp.toPath(), Paths.get(fileName), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        });
+        if (saved) {
             LOGGER.info("Saved model: " + fileName);
-        } catch (IOException e) {
-            LOGGER.warning(e.getMessage());
+        } else {
+            tmp.delete();
         }
     }
 
@@ -227,34 +640,77 @@ public class WekaClassifier {
         dataset.setClassIndex(0);
 
         // read text file, parse data and add to instance
-        try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
-            for (String line;
-                (line = br.readLine()) != null;) {
-                // split at first occurance of n no. of words
-                String[] parts = line.split("\\s+", 2);
+        long start = Metrics.PARSE.start();
+        try (RawDatasetReader reader = new RawDatasetReader(filename, labels())) {
+            reader.read(dataset, Integer.MAX_VALUE);
+        } 
+        catch (IOException e) {
+            LOGGER.warning(e.getMessage());
+        } 
+        Metrics.PARSE.stop(start);
+        return dataset;
 
-                // basic validation
-                if (!parts[0].isEmpty() && !parts[1].isEmpty()) {
+    }
 
-                    DenseInstance row = new DenseInstance(2);
-                    row.setValue(wekaAttributes.get(0), parts[0]);
-                    row.setValue(wekaAttributes.get(1), parts[1]);
+    /**
+     * Loads a dataset in space seperated text file, parsing it on several threads.
+     * @param fileName The name of the file.
+     * @param threads number of parsing threads
+     */
+    public Instances loadRawDataset(String filename, int threads) {
+        Instances dataset = new Instances("SMS spam", wekaAttributes, 10);
+        dataset.setClassIndex(0);
 
-                    // add row to instances
-                    dataset.add(row);
+        long start = Metrics.PARSE.start();
+        try {
+            Attribute textAttribute = dataset.attribute(1);
+            for (ParallelDatasetLoader.Chunk chunk: new ParallelDatasetLoader(threads).parse(filename, labels())) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    double[] values = new double[2];
+                    values[0] = chunk.label(i);
+                    values[1] = textAttribute.addStringValue(chunk.text(i));
+                    dataset.add(new DenseInstance(1, values));
                 }
-
             }
-
-        } 
-        catch (IOException e) {
+        } catch (IOException e) {
             LOGGER.warning(e.getMessage());
-        } 
-        catch (ArrayIndexOutOfBoundsException e) {
-            LOGGER.info("invalid row.");
         }
+        Metrics.PARSE.stop(start);
         return dataset;
+    }
+
+    /**
+     * Reads a dataset in space seperated text file a chunk at a time, so that files larger
+     * than the heap can be processed. Every chunk has its own header, so the strings of a
+     * chunk can be collected as soon as the consumer is done with it.
+     * @param fileName The name of the file.
+     * @param chunkSize maximum number of rows per chunk
+     * @param consumer receives the chunks in file order
+     */
+    public void streamRawDataset(String filename, int chunkSize, Consumer < Instances > consumer) {
+        try (RawDatasetReader reader = new RawDatasetReader(filename, labels())) {
+            while (true) {
+                Instances chunk = newDataset("SMS spam", chunkSize);
+                if (reader.read(chunk, chunkSize) == 0) {
+                    break;
+                }
+                consumer.accept(chunk);
+            }
+        } catch (IOException e) {
+            LOGGER.warning(e.getMessage());
+        }
+    }
 
+    /**
+     * @return the class labels, in the order of the label attribute values
+     */
+    public List < String > labels() {
+        Attribute classAttribute = wekaAttributes.get(0);
+        List < String > labels = new ArrayList < > (classAttribute.numValues());
+        for (int i = 0; i < classAttribute.numValues(); i++) {
+            labels.add(classAttribute.value(i));
+        }
+        return labels;
     }
 
     /**
@@ -293,6 +749,93 @@ public class WekaClassifier {
         }
     }
 
+    /**
+     * Loads a dataset in space seperated text file through its binary cache. The cache is used
+     * only if it was built from the current content of the file with the current label and
+     * filter settings; otherwise the file is parsed and the cache is rebuilt in the background.
+     * @param fileName The name of the file.
+     * @param cacheFile The name of the binary cache file.
+     */
+    public Instances loadCachedDataset(String filename, String cacheFile) {
+        DatasetCache cache = new DatasetCache(cacheSettings(classifier.getFilter()));
+        try {
+            long key = cache.key(filename);
+            if (cache.isFresh(cacheFile, key)) {
+                Instances dataset = loadBinary(cacheFile);
+                if (dataset != null) {
+                    return dataset;
+                }
+            }
+            Instances dataset = loadRawDataset(filename);
+            cache.storeInBackground(dataset, cacheFile, key);
+            return dataset;
+        } catch (IOException e) {
+            LOGGER.warning(e.getMessage());
+            return loadRawDataset(filename);
+        }
+    }
+
+    /**
+     * Runs the classifier's filter over a dataset and saves the result in the background, so
+     * that later training runs on the same file and settings can skip tokenization.
+     * @param dataset the dataset loaded from the file.
+     * @param fileName The name of the file the dataset was loaded from.
+     * @param cacheFile The name of the vectorized corpus file.
+     */
+    public VectorizedCorpus vectorize(Instances dataset, String filename, String cacheFile) throws Exception {
+        long key = new DatasetCache(cacheSettings(classifier.getFilter())).key(filename);
+        long start = Metrics.VECTORIZE.start();
+        VectorizedCorpus corpus = VectorizedCorpus.vectorize(dataset, classifier.getFilter(), key);
+        Metrics.VECTORIZE.stop(start);
+        DatasetCache.replaceInBackground(cacheFile, corpus::write);
+        return corpus;
+    }
+
+    /**
+     * @param filter the filter the data is or will be vectorized with, or null
+     * @return description of the settings that shape cached data: labels, filter and tokenizer options
+     */
+    private String cacheSettings(Filter filter) {
+        StringBuilder settings = new StringBuilder("labels=").append(labels());
+        if (filter != null) {
+            settings.append(";filter=").append(filter.getClass().getName())
+                .append(' ').append(Utils.joinOptions(filter.getOptions()));
+        }
+        return settings.toString();
+    }
+
+    /**
+     * Loads a dataset saved by saveBinary(). The file is memory-mapped and the texts are
+     * decoded straight from the mapping.
+     * @param fileName The name of the file that stores the dataset.
+     * @return the dataset, or null if the file cannot be read
+     */
+    public Instances loadBinary(String fileName) {
+        try (BinaryDataset binary = BinaryDataset.open(fileName)) {
+            Instances dataset = new Instances("SMS spam", wekaAttributes, binary.size());
+            dataset.setClassIndex(0);
+            binary.addTo(dataset);
+            return dataset;
+        } catch (IOException e) {
+            LOGGER.warning(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * This method saves a dataset in the binary format, a label column plus one UTF-8
+     * blob holding all texts. It replaces ARFF as the cache of parsed datasets.
+     * @param dataset dataset with the label and text attributes
+     * @param fileName The name of the file that stores the dataset.
+     */
+    public void saveBinary(Instances dataset, String filename) {
+        try {
+            BinaryDataset.write(dataset, filename);
+        } catch (IOException e) {
+            LOGGER.warning(e.getMessage());
+        }
+    }
+
     /**
      * Main method. With an example usage of this class.
      */
@@ -301,6 +844,17 @@ public class WekaClassifier {
 
         WekaClassifier wt = new WekaClassifier();
 
+        // partial <input> <partial>: count one file; merge <model> <partial>...: build a model from partials
+        if (args.length >= 3 && args[0].equals("partial")) {
+            wt.countPartial(args[1], args[2]);
+            return;
+        }
+        if (args.length >= 3 && args[0].equals("merge")) {
+            wt.fit(Arrays.asList(args).subList(2, args.length));
+            wt.saveModel(args[1]);
+            return;
+        }
+
         if (new File(MODEL).exists()) {
             wt.loadModel(MODEL);
         } else {
@@ -309,11 +863,19 @@ public class WekaClassifier {
             wt.saveModel(MODEL);
         }
 
+        // replay training messages before reporting ready, so the first requests are not slow
+        wt.warmUp(200, 5000);
+        LOGGER.info("Ready");
+
         //run few predictions
         LOGGER.info("text 'how are you' is " + wt.predict("how are you ?"));
         LOGGER.info("text 'u have won the 1 lakh prize' is " + wt.predict("u have won the 1 lakh prize"));
 
         //run evaluation
         LOGGER.info("Evaluation Result: \n"+wt.evaluate());
+
+        if (Metrics.ENABLED) {
+            LOGGER.info("Stage timings:\n" + Metrics.dump());
+        }
     }
 }
\ No newline at end of file
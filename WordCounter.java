@@ -0,0 +1,204 @@
+import java.util.Arrays;
+
+import weka.core.Instances;
+import weka.core.SerializedObject;
+import weka.core.stemmers.NullStemmer;
+import weka.core.stemmers.Stemmer;
+import weka.core.tokenizers.Tokenizer;
+
+import weka.filters.unsupervised.attribute.StringToWordVector;
+
+
+/**
+ * Turns a message into the dictionary words it contains, the way a trained StringToWordVector
+ * does: tokenize, lowercase, stem, look up. Each thread gets its own tokenizer and stemmer and
+ * a reusable Counts, so counting allocates nothing once a thread has warmed up.
+ * With an AsciiWordTokenizer and no stemmer, tokens are looked up straight from the
+ * tokenizer's buffer without creating Strings.
+ * The words can be looked up in any Dictionary: a Vocabulary on the heap, or the word table
+ * of a mapped model file. Nothing is kept per dictionary word, only per word of the message.
+ */
+public class WordCounter {
+
+    /**
+     * Map from words to dense indices 0..size()-1, safe to read from many threads.
+     */
+    public interface Dictionary {
+
+        /**
+         * @param word the word
+         * @return index of the word, or -1 if it is not present
+         */
+        int get(String word);
+
+        /**
+         * look up the word held in chars[offset, offset + length).
+         * @param hash String.hashCode() of the word
+         * @return index of the word, or -1 if it is not present
+         */
+        int get(char[] chars, int offset, int length, int hash);
+
+        /**
+         * @return number of words
+         */
+        int size();
+    }
+
+    private final Dictionary dictionary;
+
+    private final Tokenizer tokenizer;
+    private final Stemmer stemmer;
+    private final boolean lowerCaseTokens;
+    private final boolean outputWordCounts;
+
+    // tokens can be looked up without creating Strings
+    private final boolean fastPath;
+
+    private final ThreadLocal < Counts > counts = ThreadLocal.withInitial(this::newCounts);
+
+    /**
+     * The words of one message in increasing word order, with their values: the number of
+     * occurrences if the filter outputs word counts, 1 otherwise. Owned by the calling thread
+     * and overwritten by its next count().
+     */
+    public static final class Counts {
+        final Tokenizer tokenizer;
+        final Stemmer stemmer;
+        int[] words = new int[64];
+        double[] values = new double[64];
+        int size;
+
+        Counts(Tokenizer tokenizer, Stemmer stemmer) {
+            this.tokenizer = tokenizer;
+            this.stemmer = stemmer;
+        }
+
+        /**
+         * @return number of distinct words
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return word index of the i-th distinct word
+         */
+        public int word(int i) {
+            return words[i];
+        }
+
+        /**
+         * @return value of the i-th distinct word
+         */
+        public double value(int i) {
+            return values[i];
+        }
+    }
+
+    /**
+     * @param dictionary word -> word index
+     * @param filter the trained filter whose tokenizer, stemmer and options are used
+     */
+    public WordCounter(Dictionary dictionary, StringToWordVector filter) {
+        this.dictionary = dictionary;
+        this.tokenizer = filter.getTokenizer();
+        this.stemmer = filter.getStemmer();
+        this.lowerCaseTokens = filter.getLowerCaseTokens();
+        this.outputWordCounts = filter.getOutputWordCounts();
+        this.fastPath = tokenizer instanceof AsciiWordTokenizer && stemmer instanceof NullStemmer;
+    }
+
+    /**
+     * take the dictionary of a trained filter. Word index w is the w-th attribute of the
+     * filter's output that is not the class.
+     * @param filter the trained filter
+     * @return the counter
+     */
+    public static WordCounter of(StringToWordVector filter) {
+        Instances header = filter.getOutputFormat();
+        String prefix = filter.getAttributeNamePrefix();
+        Vocabulary dictionary = new Vocabulary(header.numAttributes());
+        for (int i = 0; i < header.numAttributes(); i++) {
+            if (i != header.classIndex()) {
+                dictionary.add(header.attribute(i).name().substring(prefix.length()));
+            }
+        }
+        return new WordCounter(dictionary, filter);
+    }
+
+    /**
+     * @return the number of words in the dictionary
+     */
+    public int numWords() {
+        return dictionary.size();
+    }
+
+    /**
+     * count the dictionary words of a message.
+     * @param text the message.
+     * @return the words, valid until this thread counts again
+     */
+    public Counts count(String text) {
+        Counts s = counts.get();
+        s.size = 0;
+        s.tokenizer.tokenize(text);
+        if (fastPath) {
+            AsciiWordTokenizer tokens = (AsciiWordTokenizer) s.tokenizer;
+            while (tokens.advance()) {
+                int index = dictionary.get(tokens.tokenChars(), tokens.tokenOffset(), tokens.tokenLength(), tokens.tokenHash());
+                if (index >= 0) {
+                    add(s, index);
+                }
+            }
+        } else {
+            while (s.tokenizer.hasMoreElements()) {
+                String word = s.tokenizer.nextElement();
+                if (lowerCaseTokens) {
+                    word = word.toLowerCase();
+                }
+                int index = dictionary.get(s.stemmer.stem(word));
+                if (index >= 0) {
+                    add(s, index);
+                }
+            }
+        }
+
+        // word order, as NaiveBayesMultinomial walks the sparse instance; then each word once
+        Arrays.sort(s.words, 0, s.size);
+        int distinct = 0;
+        for (int i = 0; i < s.size;) {
+            int word = s.words[i];
+            int occurrences = 1;
+            while (++i < s.size && s.words[i] == word) {
+                occurrences++;
+            }
+            s.words[distinct] = word;
+            s.values[distinct++] = outputWordCounts ? occurrences : 1;
+        }
+        s.size = distinct;
+        return s;
+    }
+
+    /**
+     * remember one occurrence of a word.
+     */
+    private static void add(Counts s, int word) {
+        if (s.size == s.words.length) {
+            s.words = Arrays.copyOf(s.words, s.size * 2);
+            s.values = Arrays.copyOf(s.values, s.size * 2);
+        }
+        s.words[s.size++] = word;
+    }
+
+    /**
+     * give the calling thread its own copy of the trained tokenizer and stemmer.
+     */
+    private Counts newCounts() {
+        try {
+            return new Counts((Tokenizer) new SerializedObject(tokenizer).getObject(),
+                (Stemmer) new SerializedObject(stemmer).getObject());
+        } catch (Exception e) {
+            throw new IllegalStateException("cannot copy tokenizer or stemmer", e);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import weka.core.Instances;
+
+
+/**
+ * Calls into WekaClassifier, which lives in the unnamed package and so cannot be imported by
+ * the benchmarks; JMH in turn needs benchmarks in a named package. The handles are constants,
+ * so the JIT inlines them and a call costs the same as a direct one.
+ */
+final class Classifiers {
+
+    private static final Class < ? > WEKA_CLASSIFIER = load("WekaClassifier");
+
+    private static final MethodHandle NEW = constructor();
+    private static final MethodHandle TRANSFORM = method("transform", void.class);
+    private static final MethodHandle FIT = method("fit", void.class, Instances.class);
+    private static final MethodHandle PREDICT = method("predict", String.class, String.class);
+    private static final MethodHandle LOAD_RAW_DATASET = method("loadRawDataset", Instances.class, String.class);
+    private static final MethodHandle LOAD_ARFF = method("loadArff", Instances.class, String.class);
+    private static final MethodHandle SAVE_ARFF = method("saveArff", void.class, Instances.class, String.class);
+    private static final MethodHandle LOAD_MODEL = method("loadModel", boolean.class, String.class);
+    private static final MethodHandle SAVE_MODEL = method("saveModel", void.class, String.class);
+    private static final MethodHandle EVALUATE = method("evaluate", String.class, Instances.class);
+
+    private Classifiers() {}
+
+    private static Class < ? > load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle constructor() {
+        try {
+            return MethodHandles.publicLookup().findConstructor(WEKA_CLASSIFIER, MethodType.methodType(void.class))
+                .asType(MethodType.methodType(Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * find a public method of WekaClassifier, typed to take the instance as an Object.
+     */
+    private static MethodHandle method(String name, Class < ? > returnType, Class < ? > ...parameterTypes) {
+        try {
+            MethodHandle handle = MethodHandles.publicLookup().findVirtual(WEKA_CLASSIFIER, name,
+                MethodType.methodType(returnType, parameterTypes));
+            return handle.asType(handle.type().changeParameterType(0, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new IllegalStateException(t);
+    }
+
+    /**
+     * @return a new WekaClassifier, with the filter set and the training data loaded
+     */
+    static Object transformed() {
+        try {
+            Object wt = (Object) NEW.invokeExact();
+            TRANSFORM.invokeExact(wt);
+            return wt;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void fit(Object wt, Instances dataset) {
+        try {
+            FIT.invokeExact(wt, dataset);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static String predict(Object wt, String text) {
+        try {
+            return (String) PREDICT.invokeExact(wt, text);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Instances loadRawDataset(Object wt, String fileName) {
+        try {
+            return (Instances) LOAD_RAW_DATASET.invokeExact(wt, fileName);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Instances loadArff(Object wt, String fileName) {
+        try {
+            return (Instances) LOAD_ARFF.invokeExact(wt, fileName);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void saveArff(Object wt, Instances dataset, String fileName) {
+        try {
+            SAVE_ARFF.invokeExact(wt, dataset, fileName);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean loadModel(Object wt, String fileName) {
+        try {
+            return (boolean) LOAD_MODEL.invokeExact(wt, fileName);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void saveModel(Object wt, String fileName) {
+        try {
+            SAVE_MODEL.invokeExact(wt, fileName);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static String evaluate(Object wt, Instances testData) {
+        try {
+            return (String) EVALUATE.invokeExact(wt, testData);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+
+/**
+ * The data sets the benchmarks run over: the files of dataset/, or synthetic corpora made of
+ * copies of them, scaled up to millions of messages (train.txt holds 5000, test.txt 525).
+ * The paths are relative, so the benchmarks run from the repository root.
+ */
+final class Corpus {
+
+    static final String TRAIN_DATA = "dataset/train.txt";
+    static final String TEST_DATA = "dataset/test.txt";
+
+    private Corpus() {}
+
+    /**
+     * @param fileName a data set in dataset/
+     * @param copies how many times the data set is repeated
+     * @return the data set itself for one copy, otherwise a temporary file deleted on exit
+     */
+    static String of(String fileName, int copies) throws IOException {
+        Path source = Paths.get(fileName);
+        if (!Files.exists(source)) {
+            throw new IllegalStateException(fileName + " not found, run the benchmarks from the repository root");
+        }
+        if (copies == 1) {
+            return fileName;
+        }
+        byte[] data = Files.readAllBytes(source);
+        Path corpus = tempFile("sms-corpus", ".txt");
+        try (OutputStream out = Files.newOutputStream(corpus)) {
+            for (int i = 0; i < copies; i++) {
+                out.write(data);
+            }
+        }
+        return corpus.toString();
+    }
+
+    /**
+     * @return a new empty file, deleted on exit
+     */
+    static Path tempFile(String prefix, String suffix) throws IOException {
+        File file = File.createTempFile(prefix, suffix);
+        file.deleteOnExit();
+        return file.toPath();
+    }
+}
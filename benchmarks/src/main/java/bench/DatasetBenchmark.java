@@ -0,0 +1,66 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import weka.core.Instances;
+
+
+/**
+ * Reading the raw training data, and writing and reading it as ARFF, for train.txt and for
+ * synthetic corpora of its copies: 200 copies hold one million messages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class DatasetBenchmark {
+
+    @Param({"1", "200"})
+    int copies;
+
+    private Object classifier;
+    private String corpus;
+    private Instances dataset;
+    private String arffFile;
+    private String savedArffFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        classifier = Classifiers.transformed();
+        corpus = Corpus.of(Corpus.TRAIN_DATA, copies);
+        dataset = Classifiers.loadRawDataset(classifier, corpus);
+        arffFile = Corpus.tempFile("sms-corpus", ".arff").toString();
+        Classifiers.saveArff(classifier, dataset, arffFile);
+        savedArffFile = Corpus.tempFile("sms-saved", ".arff").toString();
+    }
+
+    @Benchmark
+    public Instances loadRawDataset() {
+        return Classifiers.loadRawDataset(classifier, corpus);
+    }
+
+    @Benchmark
+    public void saveArff() {
+        Classifiers.saveArff(classifier, dataset, savedArffFile);
+    }
+
+    @Benchmark
+    public Instances loadArff() {
+        return Classifiers.loadArff(classifier, arffFile);
+    }
+}
@@ -0,0 +1,50 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import weka.core.Instances;
+
+
+/**
+ * evaluate() of a classifier trained on train.txt, over test.txt or a synthetic corpus of
+ * its copies: 2000 copies hold about a million messages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class EvaluateBenchmark {
+
+    @Param({"1", "2000"})
+    int copies;
+
+    private Object classifier;
+    private Instances testData;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        classifier = Classifiers.transformed();
+        Classifiers.fit(classifier, Classifiers.loadRawDataset(classifier, Corpus.TRAIN_DATA));
+        testData = Classifiers.loadRawDataset(classifier, Corpus.of(Corpus.TEST_DATA, copies));
+    }
+
+    @Benchmark
+    public String evaluate() {
+        return Classifiers.evaluate(classifier, testData);
+    }
+}
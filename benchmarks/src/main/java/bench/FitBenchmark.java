@@ -0,0 +1,50 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import weka.core.Instances;
+
+
+/**
+ * fit() from scratch: filtering the messages into word vectors and training NaiveBayes, for
+ * train.txt and for synthetic corpora of its copies.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class FitBenchmark {
+
+    @Param({"1", "200"})
+    int copies;
+
+    private Object classifier;
+    private Instances dataset;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        classifier = Classifiers.transformed();
+        dataset = Classifiers.loadRawDataset(classifier, Corpus.of(Corpus.TRAIN_DATA, copies));
+    }
+
+    @Benchmark
+    public Object fit() {
+        Classifiers.fit(classifier, dataset);
+        return classifier;
+    }
+}
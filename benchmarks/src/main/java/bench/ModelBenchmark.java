@@ -0,0 +1,59 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * saveModel() and loadModel() of a classifier trained on train.txt or on a synthetic corpus
+ * of its copies. The dictionary is capped per class, so the file barely grows with the corpus;
+ * the counts in it do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class ModelBenchmark {
+
+    @Param({"1", "200"})
+    int copies;
+
+    private Object classifier;
+    private Object loaded;
+    private String modelFile;
+    private String savedModelFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        classifier = Classifiers.transformed();
+        Classifiers.fit(classifier, Classifiers.loadRawDataset(classifier, Corpus.of(Corpus.TRAIN_DATA, copies)));
+        modelFile = Corpus.tempFile("sms-model", ".dat").toString();
+        Classifiers.saveModel(classifier, modelFile);
+        savedModelFile = Corpus.tempFile("sms-saved", ".dat").toString();
+        loaded = Classifiers.transformed();
+    }
+
+    @Benchmark
+    public void saveModel() {
+        Classifiers.saveModel(classifier, savedModelFile);
+    }
+
+    @Benchmark
+    public boolean loadModel() {
+        return Classifiers.loadModel(loaded, modelFile);
+    }
+}
@@ -0,0 +1,57 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import weka.core.Instances;
+
+
+/**
+ * predict() of a classifier trained on train.txt, one message per call, going round the
+ * messages of the test set or of a synthetic corpus of its copies.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class PredictBenchmark {
+
+    @Param({"1", "2000"})
+    int copies;
+
+    private Object classifier;
+    private List < String > messages;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        classifier = Classifiers.transformed();
+        Classifiers.fit(classifier, Classifiers.loadRawDataset(classifier, Corpus.TRAIN_DATA));
+        Instances test = Classifiers.loadRawDataset(classifier, Corpus.of(Corpus.TEST_DATA, copies));
+        messages = new ArrayList < > (test.numInstances());
+        test.forEach(row -> messages.add(row.stringValue(1)));
+    }
+
+    @Benchmark
+    public String predict() {
+        String text = messages.get(next);
+        next = next + 1 == messages.size() ? 0 : next + 1;
+        return Classifiers.predict(classifier, text);
+    }
+}